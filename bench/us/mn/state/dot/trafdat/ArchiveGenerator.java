@@ -0,0 +1,366 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generator for synthetic traffic archives.  Sample files follow a daily
+ * traffic profile with morning and evening peaks, and vehicle event logs
+ * have the mix of missing stamps, missing speeds and resets found in real
+ * logs.  The same seed always generates the same archive.
+ *
+ * @author Douglas Lau
+ */
+public class ArchiveGenerator {
+
+	/** Default district */
+	static public final String DISTRICT = "tms";
+
+	/** Default first date */
+	static public final String FIRST_DATE = "20140101";
+
+	/** Number of 30-second samples per day */
+	static private final int SAMPLES_PER_DAY = 2880;
+
+	/** Number of milliseconds per day */
+	static private final int MS_PER_DAY = 24 * 60 * 60 * 1000;
+
+	/** Maximum volume per 30-second sample */
+	static private final int MAX_VOLUME = 25;
+
+	/** Maximum scan per 30-second sample (1/60 seconds) */
+	static private final int MAX_SCAN = 1800;
+
+	/** Get the sensor ID for an index */
+	static public String sensorId(int i) {
+		return Integer.toString(100 + i);
+	}
+
+	/** Get the relative traffic demand at a time of day.
+	 * @param t Time of day (0 - 1).
+	 * @return Relative demand (0 - 1). */
+	static private double demand(double t) {
+		double am = Math.exp(-square((t - 0.31) / 0.05));
+		double pm = Math.exp(-square((t - 0.69) / 0.07));
+		double day = Math.exp(-square((t - 0.5) / 0.22));
+		return 0.03 + 0.45 * day + 0.5 * Math.max(am, pm);
+	}
+
+	/** Square a value */
+	static private double square(double v) {
+		return v * v;
+	}
+
+	/** Random number generator */
+	private final Random rng;
+
+	/** Number of sensors */
+	private final int sensors;
+
+	/** Number of sensors with vehicle event logs */
+	private final int vlog_sensors;
+
+	/** Number of events in each vehicle event log */
+	private final int events;
+
+	/** Create a new archive generator.
+	 * @param seed Random seed.
+	 * @param s Number of sensors.
+	 * @param vs Number of sensors with vehicle event logs.
+	 * @param e Number of events per vehicle event log. */
+	public ArchiveGenerator(long seed, int s, int vs, int e) {
+		rng = new Random(seed);
+		sensors = s;
+		vlog_sensors = Math.min(vs, s);
+		events = e;
+	}
+
+	/** Generate volume samples (.v30) */
+	public byte[] volumes() {
+		byte[] data = new byte[SAMPLES_PER_DAY];
+		for (int i = 0; i < data.length; i++) {
+			if (isMissing())
+				data[i] = -1;
+			else
+				data[i] = (byte)volume(i);
+		}
+		return data;
+	}
+
+	/** Check if the next sample is missing */
+	private boolean isMissing() {
+		return rng.nextInt(100) == 0;
+	}
+
+	/** Generate one volume sample */
+	private int volume(int i) {
+		double d = demand((double)i / SAMPLES_PER_DAY);
+		int v = (int)Math.round(d * MAX_VOLUME + rng.nextGaussian());
+		return Math.max(0, Math.min(v, MAX_VOLUME));
+	}
+
+	/** Generate scan samples (.c30, 16-bit big-endian) */
+	public byte[] scans() {
+		byte[] data = new byte[SAMPLES_PER_DAY * 2];
+		for (int i = 0; i < SAMPLES_PER_DAY; i++) {
+			int c = isMissing() ? -1 : scan(i);
+			data[i * 2] = (byte)(c >> 8);
+			data[i * 2 + 1] = (byte)c;
+		}
+		return data;
+	}
+
+	/** Generate one scan sample */
+	private int scan(int i) {
+		double d = demand((double)i / SAMPLES_PER_DAY);
+		int c = (int)Math.round(d * d * MAX_SCAN * 0.6 +
+			rng.nextGaussian() * 20);
+		return Math.max(0, Math.min(c, MAX_SCAN));
+	}
+
+	/** Generate speed samples (.s30) */
+	public byte[] speeds() {
+		byte[] data = new byte[SAMPLES_PER_DAY];
+		for (int i = 0; i < data.length; i++) {
+			if (isMissing())
+				data[i] = -1;
+			else
+				data[i] = (byte)speed(i);
+		}
+		return data;
+	}
+
+	/** Generate one speed sample (mph) */
+	private int speed(int i) {
+		double d = demand((double)i / SAMPLES_PER_DAY);
+		int s = (int)Math.round(70 - d * d * 45 +
+			rng.nextGaussian() * 4);
+		return Math.max(5, Math.min(s, 90));
+	}
+
+	/** Generate a vehicle event log (.vlog).  Every event has a headway;
+	 * only some have a time stamp or a speed, so all of the stamp
+	 * propogation passes are exercised. */
+	public byte[] vlog() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+			events * 20);
+		StringBuilder sb = new StringBuilder();
+		double mean = (double)MS_PER_DAY / events;
+		int t = 0;
+		boolean reset = true;
+		for (int n = 0; n < events; n++) {
+			double d = demand((double)t / MS_PER_DAY) * 2;
+			int h = 1 + (int)(-Math.log(1 - rng.nextDouble()) *
+				mean / d);
+			if (t + h >= MS_PER_DAY)
+				break;
+			t += h;
+			sb.setLength(0);
+			if (rng.nextInt(2000) == 0) {
+				sb.append("*\n");
+				reset = true;
+			} else {
+				appendEvent(sb, t, h, reset);
+				reset = false;
+			}
+			for (int i = 0; i < sb.length(); i++)
+				bos.write(sb.charAt(i));
+		}
+		return bos.toByteArray();
+	}
+
+	/** Append one vehicle event line */
+	private void appendEvent(StringBuilder sb, int t, int h,
+		boolean reset)
+	{
+		sb.append(150 + rng.nextInt(450)).append(',');
+		if (!reset)
+			sb.append(h);
+		sb.append(',');
+		if (reset || rng.nextInt(10) == 0)
+			appendStamp(sb, t / 1000);
+		sb.append(',');
+		if (rng.nextBoolean())
+			sb.append(speed((int)((long)t * SAMPLES_PER_DAY /
+				MS_PER_DAY)));
+		sb.append('\n');
+	}
+
+	/** Append a time stamp (hh:mm:ss) */
+	static private void appendStamp(StringBuilder sb, int sec) {
+		append2(sb, sec / 3600).append(':');
+		append2(sb, sec / 60 % 60).append(':');
+		append2(sb, sec % 60);
+	}
+
+	/** Append a 2-digit value */
+	static private StringBuilder append2(StringBuilder sb, int v) {
+		if (v < 10)
+			sb.append('0');
+		return sb.append(v);
+	}
+
+	/** Write a .traffic file with all sample files for one date.
+	 * @param file Traffic file to write. */
+	public void writeTraffic(File file) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(
+			new FileOutputStream(file));
+		try {
+			for (int i = 0; i < sensors; i++) {
+				String sid = sensorId(i);
+				putEntry(zos, sid + ".v30", volumes());
+				putEntry(zos, sid + ".c30", scans());
+				putEntry(zos, sid + ".s30", speeds());
+				if (i < vlog_sensors)
+					putEntry(zos, sid + ".vlog", vlog());
+			}
+		}
+		finally {
+			zos.close();
+		}
+	}
+
+	/** Put one entry into a zip file */
+	static private void putEntry(ZipOutputStream zos, String name,
+		byte[] data) throws IOException
+	{
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(data);
+		zos.closeEntry();
+	}
+
+	/** Write a date directory with all sample files for one date.
+	 * @param dir Date directory to write. */
+	public void writeDirectory(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("mkdirs failed: " + dir);
+		for (int i = 0; i < sensors; i++) {
+			String sid = sensorId(i);
+			writeFile(new File(dir, sid + ".v30"), volumes());
+			writeFile(new File(dir, sid + ".c30"), scans());
+			writeFile(new File(dir, sid + ".s30"), speeds());
+			if (i < vlog_sensors)
+				writeFile(new File(dir, sid + ".vlog"), vlog());
+		}
+	}
+
+	/** Write one file */
+	static private void writeFile(File file, byte[] data)
+		throws IOException
+	{
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	/** Write the sample data for one date of a district.
+	 * @param dist District directory.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param pack Write a .traffic file if true, otherwise a date
+	 *             directory (like the current date). */
+	public void writeDate(File dist, String date, boolean pack)
+		throws IOException
+	{
+		File year = new File(dist, date.substring(0, 4));
+		if (!year.isDirectory() && !year.mkdirs())
+			throw new IOException("mkdirs failed: " + year);
+		if (pack)
+			writeTraffic(new File(year, date + ".traffic"));
+		else
+			writeDirectory(new File(year, date));
+	}
+
+	/** Write a district with consecutive dates.  The last date is
+	 * written as a date directory; all others as .traffic files.
+	 * @param dist District directory.
+	 * @param first First date (8 digits yyyyMMdd).
+	 * @param days Number of dates. */
+	public void writeDistrict(File dist, String first, int days)
+		throws IOException
+	{
+		for (int d = 0; d < days; d++)
+			writeDate(dist, addDays(first, d), d < days - 1);
+	}
+
+	/** Add days to a date.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param days Number of days to add.
+	 * @return String date (8 digits yyyyMMdd). */
+	static public String addDays(String date, int days) {
+		SimpleDateFormat f = new SimpleDateFormat("yyyyMMdd");
+		Calendar cal = Calendar.getInstance();
+		try {
+			cal.setTime(f.parse(date));
+		}
+		catch (ParseException e) {
+			throw new IllegalArgumentException(date);
+		}
+		cal.add(Calendar.DATE, days);
+		return f.format(cal.getTime());
+	}
+
+	/** Create a temporary directory */
+	static public File createTempDir() throws IOException {
+		return Files.createTempDirectory("trafdat").toFile();
+	}
+
+	/** Delete a file or directory tree */
+	static public void deleteAll(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f: files)
+				deleteAll(f);
+		}
+		file.delete();
+	}
+
+	/** Generate an archive from the command line.
+	 * Usage: ArchiveGenerator dir [sensors [vlogs [events [days]]]] */
+	static public void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ArchiveGenerator dir " +
+				"[sensors [vlogs [events [days]]]]");
+			System.exit(1);
+		}
+		File dist = new File(args[0], DISTRICT);
+		int s = intArg(args, 1, 1000);
+		int vs = intArg(args, 2, 10);
+		int e = intArg(args, 3, 20000);
+		int days = intArg(args, 4, 2);
+		new ArchiveGenerator(1, s, vs, e).writeDistrict(dist,
+			FIRST_DATE, days);
+	}
+
+	/** Get an integer command line argument */
+	static private int intArg(String[] args, int i, int def) {
+		return (args.length > i) ? Integer.parseInt(args[i]) : def;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmark state with a generated archive in a temporary directory.  The
+ * first date is stored in a .traffic file, and the second in a date
+ * directory.
+ *
+ * @author Douglas Lau
+ */
+@State(Scope.Benchmark)
+public class ArchiveState {
+
+	/** Random seed for generated archive */
+	static public final long SEED = 1;
+
+	/** Date stored in a .traffic file */
+	static public final String TRAFFIC_DATE = ArchiveGenerator.FIRST_DATE;
+
+	/** Date stored in a date directory */
+	static public final String DIR_DATE =
+		ArchiveGenerator.addDays(TRAFFIC_DATE, 1);
+
+	/** Number of sensors in the archive */
+	@Param({ "4000" })
+	public int sensors;
+
+	/** Temporary directory */
+	private File dir;
+
+	/** Sensor archive */
+	private SensorArchive archive;
+
+	/** Generate the archive */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = ArchiveGenerator.createTempDir();
+		File dist = new File(dir, ArchiveGenerator.DISTRICT);
+		new ArchiveGenerator(SEED, sensors, 0, 0).writeDistrict(dist,
+			TRAFFIC_DATE, 2);
+		archive = new SensorArchive(dist, new File(dir, "index"));
+	}
+
+	/** Delete the archive */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SensorArchive.evictTrafficFiles();
+		ArchiveGenerator.deleteAll(dir);
+	}
+
+	/** Get the sensor archive */
+	public SensorArchive getArchive() {
+		return archive;
+	}
+}
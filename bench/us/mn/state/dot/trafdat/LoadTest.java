@@ -0,0 +1,435 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Load test for the trafdat servlet.  The servlet is run in an embedded
+ * container on localhost, against a generated archive.  A mix of requests
+ * is replayed by a fixed number of client threads, each sending its next
+ * request as soon as the previous one completes.  Latency percentiles,
+ * throughput and the allocation rate of server threads are reported.
+ *
+ * Options are given as name=value arguments:
+ *   dir       Archive directory (default: temporary, deleted after).
+ *   sensors   Number of sensors per date (1000).
+ *   vlogs     Number of sensors with vehicle event logs (20).
+ *   events    Number of events per vehicle event log (20000).
+ *   days      Number of dates (3).
+ *   threads   Number of client threads (16).
+ *   warmup    Warmup time, not measured (10 seconds).
+ *   duration  Measured time (30 seconds).
+ *   mix       File of recorded request paths, one per line.  If not
+ *             given, a synthetic mix is generated.
+ *   requests  Number of requests in a synthetic mix (10000).
+ *   seed      Random seed for archive and synthetic mix (1).
+ * Servlet init parameters (such as ioThreads) may also be given.
+ *
+ * @author Douglas Lau
+ */
+public class LoadTest {
+
+	/** Context path of servlet */
+	static private final String CONTEXT = "/trafdat";
+
+	/** Servlet init parameters which can be given as options */
+	static private final String[] INIT_PARAMS = {
+		"ioThreads", "ioQueue", "bulkThreads", "bulkQueue",
+		"rollupMinValid", "lengthClassBounds",
+	};
+
+	/** Raw sample file extensions */
+	static private final String[] RAW_EXT = { ".v30", ".c30", ".s30" };
+
+	/** Sample file extensions binned from vehicle event logs */
+	static private final String[] VLOG_EXT = {
+		".vs30", ".vm30", ".vl30", ".vmc30", ".v60", ".s300",
+	};
+
+	/** Size of buffer for reading responses */
+	static private final int BUF_SIZE = 8192;
+
+	/** Number of nanoseconds per millisecond */
+	static private final double NS_PER_MS = 1000000.0;
+
+	/** Options */
+	private final HashMap<String, String> options =
+		new HashMap<String, String>();
+
+	/** Create a new load test.
+	 * @param args Options (name=value). */
+	private LoadTest(String[] args) {
+		for (String a: args) {
+			int i = a.indexOf('=');
+			if (i < 1)
+				throw new IllegalArgumentException(a);
+			options.put(a.substring(0, i), a.substring(i + 1));
+		}
+	}
+
+	/** Get an integer option */
+	private int intOption(String name, int def) {
+		String v = options.get(name);
+		return (v != null) ? Integer.parseInt(v) : def;
+	}
+
+	/** Run the load test */
+	private void run() throws Exception {
+		String d = options.get("dir");
+		File dir = (d != null) ? new File(d)
+		                       : ArchiveGenerator.createTempDir();
+		try {
+			File dist = new File(dir, ArchiveGenerator.DISTRICT);
+			if (!dist.isDirectory())
+				generate(dist);
+			Server server = startServer(dir);
+			try {
+				run(getPort(server));
+			}
+			finally {
+				server.stop();
+			}
+		}
+		finally {
+			if (d == null)
+				ArchiveGenerator.deleteAll(dir);
+		}
+	}
+
+	/** Generate an archive */
+	private void generate(File dist) throws IOException {
+		System.out.println("Generating archive: " + dist);
+		new ArchiveGenerator(intOption("seed", 1),
+			intOption("sensors", 1000), intOption("vlogs", 20),
+			intOption("events", 20000)).writeDistrict(dist,
+			ArchiveGenerator.FIRST_DATE, intOption("days", 3));
+	}
+
+	/** Start an embedded server on localhost */
+	private Server startServer(File dir) throws Exception {
+		Server server = new Server(new InetSocketAddress("127.0.0.1",
+			0));
+		ServletContextHandler ctx = new ServletContextHandler();
+		ctx.setContextPath(CONTEXT);
+		ServletHolder sh = new ServletHolder(new TrafdatServlet());
+		sh.setAsyncSupported(true);
+		sh.setInitParameter("basePath", dir.getPath());
+		sh.setInitParameter("indexPath",
+			new File(dir, "index").getPath());
+		for (String p: INIT_PARAMS) {
+			String v = options.get(p);
+			if (v != null)
+				sh.setInitParameter(p, v);
+		}
+		ctx.addServlet(sh, "/*");
+		server.setHandler(ctx);
+		server.start();
+		return server;
+	}
+
+	/** Get the local port of a server */
+	static private int getPort(Server server) {
+		return ((ServerConnector)server.getConnectors()[0])
+			.getLocalPort();
+	}
+
+	/** Run the load test against a server */
+	private void run(int port) throws Exception {
+		String[] mix = createMix();
+		int threads = intOption("threads", 16);
+		System.setProperty("http.maxConnections",
+			Integer.toString(threads));
+		String url = "http://127.0.0.1:" + port + CONTEXT;
+		System.out.println("Warming up: " + mix.length +
+			" requests, " + threads + " threads");
+		runClients(url, mix, threads, intOption("warmup", 10));
+		System.out.println("Measuring");
+		HashMap<Long, Long> alloc = allocatedBytes();
+		long start = System.nanoTime();
+		Client[] clients = runClients(url, mix, threads,
+			intOption("duration", 30));
+		long ns = System.nanoTime() - start;
+		long bytes = serverAllocated(alloc, allocatedBytes(),
+			clients);
+		report(clients, ns, bytes);
+	}
+
+	/** Create the request mix */
+	private String[] createMix() throws IOException {
+		String m = options.get("mix");
+		return (m != null) ? readMix(new File(m)) : syntheticMix();
+	}
+
+	/** Read a recorded request mix */
+	static private String[] readMix(File file) throws IOException {
+		ArrayList<String> mix = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line = br.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (line.startsWith("/"))
+					mix.add(line);
+				line = br.readLine();
+			}
+		}
+		finally {
+			br.close();
+		}
+		if (mix.isEmpty())
+			throw new IOException("Empty mix: " + file);
+		return mix.toArray(new String[0]);
+	}
+
+	/** Create a synthetic request mix of calendar (5%), sensor list
+	 * (10%), raw (30%), JSON (35%) and vlog-binned (20%) requests. */
+	private String[] syntheticMix() {
+		Random rng = new Random(intOption("seed", 1));
+		int sensors = intOption("sensors", 1000);
+		int vlogs = Math.min(intOption("vlogs", 20), sensors);
+		int days = intOption("days", 3);
+		String dist = '/' + ArchiveGenerator.DISTRICT + '/';
+		String[] mix = new String[intOption("requests", 10000)];
+		for (int i = 0; i < mix.length; i++) {
+			String date = ArchiveGenerator.addDays(
+				ArchiveGenerator.FIRST_DATE, rng.nextInt(days));
+			String sid = ArchiveGenerator.sensorId(
+				rng.nextInt(sensors));
+			int r = rng.nextInt(100);
+			if (r < 5)
+				mix[i] = dist + date.substring(0, 4) + ".json";
+			else if (r < 15)
+				mix[i] = dist + date;
+			else if (r < 45) {
+				mix[i] = dist + date + '/' + sid +
+					pick(rng, RAW_EXT);
+			} else if (r < 80 || vlogs == 0) {
+				mix[i] = dist + date + '/' + sid +
+					pick(rng, RAW_EXT) + ".json";
+			} else {
+				mix[i] = dist + date + '/' +
+					ArchiveGenerator.sensorId(
+					rng.nextInt(vlogs)) +
+					pick(rng, VLOG_EXT) + ".json";
+			}
+		}
+		return mix;
+	}
+
+	/** Pick a random value from an array */
+	static private String pick(Random rng, String[] v) {
+		return v[rng.nextInt(v.length)];
+	}
+
+	/** Run client threads until a deadline.
+	 * @param url Base URL of servlet.
+	 * @param mix Request mix to replay.
+	 * @param n Number of client threads.
+	 * @param sec Number of seconds to run.
+	 * @return Finished clients. */
+	static private Client[] runClients(String url, String[] mix, int n,
+		int sec) throws InterruptedException
+	{
+		long end = System.nanoTime() + sec * 1000000000L;
+		AtomicInteger next = new AtomicInteger();
+		Client[] clients = new Client[n];
+		for (int i = 0; i < n; i++) {
+			clients[i] = new Client(url, mix, next, end);
+			clients[i].start();
+		}
+		for (Client c: clients)
+			c.join();
+		return clients;
+	}
+
+	/** Client thread, replaying requests from a shared mix */
+	static private class Client extends Thread {
+		private final String url;
+		private final String[] mix;
+		private final AtomicInteger next;
+		private final long end;
+		private final byte[] buf = new byte[BUF_SIZE];
+		private long[] latency = new long[1024];
+		private int n_req = 0;
+		private final int[] status = new int[6];
+		private long bytes = 0;
+
+		private Client(String u, String[] m, AtomicInteger nx,
+			long e)
+		{
+			super("LoadTest client");
+			url = u;
+			mix = m;
+			next = nx;
+			end = e;
+		}
+
+		@Override
+		public void run() {
+			while (System.nanoTime() < end) {
+				int i = next.getAndIncrement();
+				String path = mix[(i & Integer.MAX_VALUE) %
+					mix.length];
+				long st = System.nanoTime();
+				int sc = request(path);
+				record(System.nanoTime() - st, sc);
+			}
+		}
+
+		/** Send one request and read the response.
+		 * @return HTTP status code, or 0 on I/O error. */
+		private int request(String path) {
+			try {
+				HttpURLConnection c = (HttpURLConnection)
+					new URL(url + path).openConnection();
+				int sc = c.getResponseCode();
+				InputStream in = (sc < 400)
+				               ? c.getInputStream()
+				               : c.getErrorStream();
+				if (in != null)
+					drain(in);
+				return sc;
+			}
+			catch (IOException e) {
+				return 0;
+			}
+		}
+
+		/** Read an input stream to the end and close it */
+		private void drain(InputStream in) throws IOException {
+			try {
+				int n = in.read(buf);
+				while (n >= 0) {
+					bytes += n;
+					n = in.read(buf);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/** Record one request */
+		private void record(long ns, int sc) {
+			if (n_req == latency.length)
+				latency = Arrays.copyOf(latency, n_req * 2);
+			latency[n_req++] = ns;
+			status[Math.min(sc / 100, status.length - 1)]++;
+		}
+	}
+
+	/** Get the bytes allocated by all live threads */
+	static private HashMap<Long, Long> allocatedBytes() {
+		com.sun.management.ThreadMXBean tmx =
+			(com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+		long[] ids = tmx.getAllThreadIds();
+		long[] b = tmx.getThreadAllocatedBytes(ids);
+		HashMap<Long, Long> alloc = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (b[i] >= 0)
+				alloc.put(ids[i], b[i]);
+		}
+		return alloc;
+	}
+
+	/** Get the bytes allocated by server threads.  Client threads and
+	 * threads which exited during the test are not counted. */
+	static private long serverAllocated(HashMap<Long, Long> before,
+		HashMap<Long, Long> after, Client[] clients)
+	{
+		HashSet<Long> cids = new HashSet<Long>();
+		for (Client c: clients)
+			cids.add(c.getId());
+		long total = 0;
+		for (Long id: after.keySet()) {
+			if (cids.contains(id))
+				continue;
+			Long b = before.get(id);
+			total += after.get(id) - ((b != null) ? b : 0);
+		}
+		return total;
+	}
+
+	/** Report the results of a test */
+	static private void report(Client[] clients, long ns, long alloc) {
+		int n = 0;
+		long bytes = 0;
+		int[] status = new int[6];
+		for (Client c: clients) {
+			n += c.n_req;
+			bytes += c.bytes;
+			for (int i = 0; i < status.length; i++)
+				status[i] += c.status[i];
+		}
+		long[] lat = new long[n];
+		int p = 0;
+		for (Client c: clients) {
+			System.arraycopy(c.latency, 0, lat, p, c.n_req);
+			p += c.n_req;
+		}
+		Arrays.sort(lat);
+		double sec = ns / 1e9;
+		System.out.printf("requests:     %d (%.1f/s)%n", n, n / sec);
+		System.out.printf("received:     %.1f MB/s%n",
+			bytes / sec / 1e6);
+		System.out.printf("status:       2xx %d, 3xx %d, 4xx %d, " +
+			"5xx %d, failed %d%n", status[2], status[3], status[4],
+			status[5], status[0]);
+		System.out.printf("latency p50:  %.3f ms%n",
+			percentile(lat, 0.5) / NS_PER_MS);
+		System.out.printf("latency p99:  %.3f ms%n",
+			percentile(lat, 0.99) / NS_PER_MS);
+		System.out.printf("latency p999: %.3f ms%n",
+			percentile(lat, 0.999) / NS_PER_MS);
+		System.out.printf("latency max:  %.3f ms%n",
+			percentile(lat, 1) / NS_PER_MS);
+		System.out.printf("allocation:   %.1f MB/s (%.1f KB/req)%n",
+			alloc / sec / 1e6, (n > 0) ? alloc / 1e3 / n : 0.0);
+	}
+
+	/** Get a percentile of sorted values */
+	static private long percentile(long[] v, double p) {
+		if (v.length == 0)
+			return 0;
+		int i = (int)Math.ceil(p * v.length) - 1;
+		return v[Math.max(0, Math.min(i, v.length - 1))];
+	}
+
+	/** Run a load test from the command line */
+	static public void main(String[] args) throws Exception {
+		new LoadTest(args).run();
+		System.exit(0);
+	}
+}
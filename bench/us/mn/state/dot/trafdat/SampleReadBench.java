@@ -0,0 +1,83 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for reading binned sample files, for byte (.v30) and short
+ * (.c30) formats.  Each invocation reads the next sensor in the archive.
+ *
+ * @author Douglas Lau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleReadBench {
+
+	/** Sample file extension */
+	@Param({ "v30", "c30" })
+	public String ext;
+
+	/** Sample file names */
+	private String[] names;
+
+	/** Index of next sample file */
+	private int n_name = 0;
+
+	/** Create the sample file names */
+	@Setup
+	public void setup(ArchiveState as) {
+		names = new String[as.sensors];
+		for (int i = 0; i < names.length; i++)
+			names[i] = ArchiveGenerator.sensorId(i) + '.' + ext;
+	}
+
+	/** Get the next sample file name */
+	private String nextName() {
+		String n = names[n_name];
+		n_name = (n_name + 1) % names.length;
+		return n;
+	}
+
+	/** Read samples from a .traffic file */
+	@Benchmark
+	public int[] readTraffic(ArchiveState as) throws IOException {
+		return as.getArchive().sampleArray(ArchiveState.TRAFFIC_DATE,
+			nextName());
+	}
+
+	/** Read samples from a date directory */
+	@Benchmark
+	public int[] readDirectory(ArchiveState as) throws IOException {
+		return as.getArchive().sampleArray(ArchiveState.DIR_DATE,
+			nextName());
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for listing the sensors sampled on a date.
+ *
+ * @author Douglas Lau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorLookupBench {
+
+	/** Count the values of an iterator */
+	static private int count(Iterator<String> it) {
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		return n;
+	}
+
+	/** List sensors in a .traffic file */
+	@Benchmark
+	public int lookupTraffic(ArchiveState as) throws IOException {
+		return count(as.getArchive().lookup(ArchiveState.TRAFFIC_DATE));
+	}
+
+	/** List sensors in a date directory */
+	@Benchmark
+	public int lookupDirectory(ArchiveState as) throws IOException {
+		return count(as.getArchive().lookup(ArchiveState.DIR_DATE));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for binning vehicle event logs.  Each benchmark creates a
+ * vehicle event log, runs all of the stamp propogation passes and bins the
+ * events into samples.
+ *
+ * @author Douglas Lau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VehicleEventLogBench {
+
+	/** Tag for derived bins and index */
+	static private final String TAG = "bench";
+
+	/** Number of events in the log */
+	@Param({ "5000", "20000", "80000" })
+	public int events;
+
+	/** Vehicle event log data */
+	private byte[] vlog;
+
+	/** Generate the vehicle event log */
+	@Setup
+	public void setup() {
+		vlog = new ArchiveGenerator(ArchiveState.SEED, 1, 1, events)
+			.vlog();
+	}
+
+	/** Bin a log into 30-second volume samples */
+	@Benchmark
+	public byte[] binVolume() throws IOException {
+		SampleBin[] bins = { new VolumeSampleBin(2880, 1) };
+		new VehicleEventLog(bins, 30, null).binSamples(
+			new ByteArrayInputStream(vlog));
+		return bins[0].getData();
+	}
+
+	/** Bin a log into all derived 30-second sample types */
+	@Benchmark
+	public DerivedBins binDerived() throws IOException {
+		return DerivedBins.bin(TAG, 30, new ByteArrayInputStream(vlog),
+			null);
+	}
+
+	/** Build the time index of a log */
+	@Benchmark
+	public VLogIndex buildIndex() throws IOException {
+		return VLogIndex.build(TAG, new ByteArrayInputStream(vlog));
+	}
+}
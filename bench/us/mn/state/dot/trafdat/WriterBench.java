@@ -0,0 +1,104 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the JSON and text writers used for servlet responses.
+ *
+ * @author Douglas Lau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBench {
+
+	/** Output stream which discards all data */
+	static private class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) { }
+		@Override
+		public void write(byte[] b, int off, int len) { }
+	}
+
+	/** Output stream for writers */
+	private final OutputStream out = new NullOutputStream();
+
+	/** Scan samples for one day */
+	private int[] samples;
+
+	/** Sensor IDs */
+	private final ArrayList<String> sensors = new ArrayList<String>();
+
+	/** Dates of one year */
+	private final ArrayList<String> dates = new ArrayList<String>();
+
+	/** Generate the data to write */
+	@Setup
+	public void setup() {
+		ArchiveGenerator gen = new ArchiveGenerator(ArchiveState.SEED,
+			1, 0, 0);
+		samples = SampleFormat.lookup(".c30").decode(
+			ByteBuffer.wrap(gen.scans()));
+		for (int i = 0; i < 4000; i++)
+			sensors.add(ArchiveGenerator.sensorId(i));
+		for (int i = 0; i < 365; i++) {
+			dates.add(ArchiveGenerator.addDays(
+				ArchiveGenerator.FIRST_DATE, i));
+		}
+	}
+
+	/** Write one day of samples as a JSON array */
+	@Benchmark
+	public void writeJsonSamples() throws IOException {
+		AsciiWriter w = new AsciiWriter(out);
+		w.writeJsonArray(samples);
+		w.flush();
+	}
+
+	/** Write a sensor list as a JSON array */
+	@Benchmark
+	public void writeJsonSensors() throws IOException {
+		AsciiWriter w = new AsciiWriter(out);
+		w.writeJsonArray(sensors.iterator());
+		w.flush();
+	}
+
+	/** Write a date list as lines of text */
+	@Benchmark
+	public void writeTextDates() throws IOException {
+		AsciiWriter w = new AsciiWriter(out);
+		w.writeLines(dates.iterator());
+		w.flush();
+	}
+}
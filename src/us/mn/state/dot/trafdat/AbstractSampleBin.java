@@ -0,0 +1,75 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+/**
+ * Base class for sample bins.  Samples are stored for each period of the
+ * day, and encoded as 8-bit or 16-bit big-endian values.  Values which do
+ * not fit are stored as missing.
+ *
+ * @author Douglas Lau
+ */
+abstract public class AbstractSampleBin implements SampleBin {
+
+	/** Binned sample data */
+	protected final int[] samples;
+
+	/** Width of each sample (bytes) */
+	protected final int width;
+
+	/** Create a new sample bin.
+	 * @param n_samples Number of samples per day.
+	 * @param w Width of each sample (1 or 2 bytes). */
+	protected AbstractSampleBin(int n_samples, int w) {
+		samples = new int[n_samples];
+		width = w;
+		for (int i = 0; i < n_samples; i++)
+			samples[i] = SampleData.MISSING_DATA;
+	}
+
+	/** Get the value to bin from a data sample.
+	 * @param sam Data sample.
+	 * @return Sample value, or MISSING_DATA. */
+	abstract protected int getValue(SampleData sam);
+
+	/** Get the maximum value which can be encoded */
+	private int maxValue() {
+		return (width == 2) ? Short.MAX_VALUE : Byte.MAX_VALUE;
+	}
+
+	/** Add one data sample to the bin */
+	public void addSample(SampleData sam) {
+		int v = getValue(sam);
+		if (v >= 0 && v <= maxValue()) {
+			int p = sam.getPeriod();
+			if (p >= 0 && p < samples.length)
+				samples[p] = v;
+		}
+	}
+
+	/** Get the binned data */
+	public byte[] getData() {
+		byte[] data = new byte[samples.length * width];
+		for (int i = 0; i < samples.length; i++) {
+			int v = samples[i];
+			if (width == 2) {
+				data[i * 2] = (byte)(v >> 8);
+				data[i * 2 + 1] = (byte)v;
+			} else
+				data[i] = (byte)v;
+		}
+		return data;
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Buffered writer for ASCII text and JSON.  Numbers are encoded directly
+ * into a byte buffer using digit tables, so writing sample data does not
+ * allocate any objects or go through a charset encoder.
+ *
+ * @author Douglas Lau
+ */
+public class AsciiWriter {
+
+	/** Size of output buffer */
+	static private final int BUF_SIZE = 8192;
+
+	/** Maximum number of bytes needed to encode an int */
+	static private final int MAX_INT_LEN = 11;
+
+	/** Tens digits for values 0 - 99 */
+	static private final byte[] TENS = new byte[100];
+
+	/** Ones digits for values 0 - 99 */
+	static private final byte[] ONES = new byte[100];
+	static {
+		for (int i = 0; i < 100; i++) {
+			TENS[i] = (byte)('0' + i / 10);
+			ONES[i] = (byte)('0' + i % 10);
+		}
+	}
+
+	/** JSON null value */
+	static private final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+	/** Output stream */
+	private final OutputStream out;
+
+	/** Output buffer */
+	private final byte[] buf = new byte[BUF_SIZE];
+
+	/** Number of bytes in buffer */
+	private int n_buf = 0;
+
+	/** Create a new ASCII writer.
+	 * @param os Output stream to write. */
+	public AsciiWriter(OutputStream os) {
+		out = os;
+	}
+
+	/** Make room in the buffer for a number of bytes */
+	private void reserve(int n) throws IOException {
+		if (n_buf + n > buf.length)
+			flushBuffer();
+	}
+
+	/** Write buffered bytes to the output stream */
+	private void flushBuffer() throws IOException {
+		if (n_buf > 0) {
+			out.write(buf, 0, n_buf);
+			n_buf = 0;
+		}
+	}
+
+	/** Write one ASCII character */
+	public void write(char c) throws IOException {
+		reserve(1);
+		buf[n_buf++] = (byte)c;
+	}
+
+	/** Write an ASCII string.  Any character outside of ASCII is written
+	 * as '?', rather than truncated to a byte.
+	 * @param s String to write. */
+	public void write(String s) throws IOException {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			reserve(1);
+			buf[n_buf++] = (c < 0x80) ? (byte)c : (byte)'?';
+		}
+	}
+
+	/** Write a byte array */
+	private void write(byte[] b) throws IOException {
+		reserve(b.length);
+		System.arraycopy(b, 0, buf, n_buf, b.length);
+		n_buf += b.length;
+	}
+
+	/** Write a non-negative integer in decimal */
+	private void writeDecimal(int v) throws IOException {
+		reserve(MAX_INT_LEN);
+		int len = decimalLength(v);
+		int p = n_buf + len;
+		while (v >= 100) {
+			int r = v % 100;
+			v /= 100;
+			buf[--p] = ONES[r];
+			buf[--p] = TENS[r];
+		}
+		buf[--p] = ONES[v];
+		if (v >= 10)
+			buf[--p] = TENS[v];
+		n_buf += len;
+	}
+
+	/** Get the number of decimal digits in a non-negative integer */
+	static private int decimalLength(int v) {
+		int len = 1;
+		while (v >= 10) {
+			v /= 10;
+			len++;
+		}
+		return len;
+	}
+
+	/** Write a sample value as JSON (null if missing).
+	 * @param v Sample value (negative for missing). */
+	public void writeJsonSample(int v) throws IOException {
+		if (v >= 0)
+			writeDecimal(v);
+		else
+			write(NULL);
+	}
+
+	/** Write an array of samples as JSON.
+	 * @param samples Sample values (negative for missing). */
+	public void writeJsonArray(int[] samples) throws IOException {
+		write('[');
+		for (int i = 0; i < samples.length; i++) {
+			if (i > 0)
+				write(',');
+			writeJsonSample(samples[i]);
+		}
+		write(']');
+	}
+
+	/** Write a JSON array of nulls.
+	 * @param n Number of nulls in array. */
+	public void writeJsonNulls(int n) throws IOException {
+		write('[');
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				write(',');
+			write(NULL);
+		}
+		write(']');
+	}
+
+	/** Write values from an iterator as a JSON array.  The values are
+	 * written as-is, without quotes.
+	 * @param it Iterator of values to write. */
+	public void writeJsonArray(Iterator<String> it) throws IOException {
+		write('[');
+		boolean first = true;
+		while (it.hasNext()) {
+			String v = it.next();
+			if (!first)
+				write(',');
+			if (v != null)
+				write(v);
+			else
+				write(NULL);
+			first = false;
+		}
+		write(']');
+	}
+
+	/** Write a quoted JSON object key, followed by a colon.
+	 * @param key Object key (must not need escaping). */
+	public void writeJsonKey(String key) throws IOException {
+		write('"');
+		write(key);
+		write('"');
+		write(':');
+	}
+
+	/** Write values from an iterator as lines of text.
+	 * @param it Iterator of values to write. */
+	public void writeLines(Iterator<String> it) throws IOException {
+		while (it.hasNext()) {
+			write(it.next());
+			write('\n');
+		}
+	}
+
+	/** Flush buffered data to the output stream */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/** Flush and close the output stream */
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response for an asynchronous request.  Data written to the response is
+ * queued, and sent to the client with a non-blocking write listener, so
+ * no container thread ever waits on a slow client.  A writer only blocks
+ * when too much data is queued for the client.
+ *
+ * @author Douglas Lau
+ */
+public class AsyncResponse extends HttpServletResponseWrapper {
+
+	/** Maximum number of bytes queued before a writer blocks */
+	static private final int MAX_QUEUED = 256 * 1024;
+
+	/** Size of queued chunks */
+	static private final int CHUNK_SIZE = 8192;
+
+	/** Asynchronous context of request */
+	private final AsyncContext context;
+
+	/** Output stream (created when first requested) */
+	private QueueOutputStream stream;
+
+	/** Flag indicating response is complete */
+	private boolean completed = false;
+
+	/** Error on asynchronous request (or null) */
+	private Throwable error;
+
+	/** Metrics of request, ended when the response is complete */
+	private Metrics.Request metrics;
+
+	/** Create a new asynchronous response.
+	 * @param ac Asynchronous context of request. */
+	public AsyncResponse(AsyncContext ac) {
+		super((HttpServletResponse)ac.getResponse());
+		context = ac;
+		ac.addListener(new AsyncListener() {
+			public void onComplete(AsyncEvent ev) {
+				setCompleted();
+			}
+			public void onTimeout(AsyncEvent ev) {
+				setError(new IOException("Timeout"));
+			}
+			public void onError(AsyncEvent ev) {
+				setError(ev.getThrowable());
+			}
+			public void onStartAsync(AsyncEvent ev) { }
+		});
+	}
+
+	/** Mark the request completed by the container */
+	private void setCompleted() {
+		endMetrics();
+		synchronized (this) {
+			completed = true;
+			setError(null);
+		}
+	}
+
+	/** End recording metrics of the request (once) */
+	private void endMetrics() {
+		Metrics.Request mr;
+		synchronized (this) {
+			mr = metrics;
+			metrics = null;
+		}
+		if (mr != null)
+			mr.end(getStatus());
+	}
+
+	/** Set an error on the request, waking any blocked writer */
+	private synchronized void setError(Throwable t) {
+		if (error == null)
+			error = (t != null) ? t : new IOException("Completed");
+		notifyAll();
+	}
+
+	/** Get the output stream for the response */
+	@Override
+	public synchronized ServletOutputStream getOutputStream()
+		throws IOException
+	{
+		if (stream == null) {
+			stream = new QueueOutputStream(super.getOutputStream());
+			stream.out.setWriteListener(stream);
+		}
+		return stream;
+	}
+
+	/** Getting a writer is not supported */
+	@Override
+	public PrintWriter getWriter() {
+		throw new IllegalStateException("Use getOutputStream");
+	}
+
+	/** Finish the response.  The request is completed once all queued
+	 * data has been sent.
+	 * @param mr Metrics of request to end on completion (or null). */
+	public void finish(Metrics.Request mr) {
+		QueueOutputStream s;
+		synchronized (this) {
+			metrics = mr;
+			s = stream;
+		}
+		if (s != null)
+			s.close();
+		else
+			complete();
+		// The stream may have been closed (and the request completed)
+		// before metrics were attached
+		if (isCompleted())
+			endMetrics();
+	}
+
+	/** Check if the request is complete */
+	private synchronized boolean isCompleted() {
+		return completed;
+	}
+
+	/** Complete the asynchronous request (once) */
+	private void complete() {
+		endMetrics();
+		synchronized (this) {
+			if (completed)
+				return;
+			completed = true;
+		}
+		context.complete();
+	}
+
+	/** Output stream which queues data for a write listener */
+	private class QueueOutputStream extends ServletOutputStream
+		implements WriteListener
+	{
+		/** Container output stream */
+		private final ServletOutputStream out;
+
+		/** Queued chunks */
+		private final ArrayDeque<byte[]> chunks =
+			new ArrayDeque<byte[]>();
+
+		/** Chunk being filled (or null) */
+		private byte[] chunk;
+
+		/** Number of bytes in chunk being filled */
+		private int n_chunk = 0;
+
+		/** Number of bytes queued */
+		private int queued = 0;
+
+		/** Flag indicating stream was closed */
+		private boolean closed = false;
+
+		/** Create a new queue output stream */
+		private QueueOutputStream(ServletOutputStream os) {
+			out = os;
+		}
+
+		/** Write one byte */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		/** Write an array of bytes */
+		@Override
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			synchronized (AsyncResponse.this) {
+				checkOpen();
+				while (len > 0) {
+					if (chunk == null) {
+						chunk = new byte[CHUNK_SIZE];
+						n_chunk = 0;
+					}
+					int n = Math.min(len,
+						CHUNK_SIZE - n_chunk);
+					System.arraycopy(b, off, chunk,
+						n_chunk, n);
+					n_chunk += n;
+					off += n;
+					len -= n;
+					if (n_chunk == CHUNK_SIZE)
+						queueChunk();
+				}
+				waitForRoom();
+			}
+			onWritePossible();
+		}
+
+		/** Check that the stream can be written */
+		private void checkOpen() throws IOException {
+			if (closed)
+				throw new IOException("Closed");
+			if (error != null)
+				throw new IOException(error);
+		}
+
+		/** Queue the chunk being filled */
+		private void queueChunk() {
+			if (chunk != null && n_chunk > 0) {
+				chunks.add((n_chunk < chunk.length)
+				          ? Arrays.copyOf(chunk, n_chunk)
+				          : chunk);
+				queued += n_chunk;
+			}
+			chunk = null;
+			n_chunk = 0;
+		}
+
+		/** Wait until there is room in the queue */
+		private void waitForRoom() throws IOException {
+			while (queued > MAX_QUEUED) {
+				sendQueued();
+				if (queued <= MAX_QUEUED)
+					break;
+				try {
+					AsyncResponse.this.wait();
+				}
+				catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				checkOpen();
+			}
+		}
+
+		/** Flush queued data */
+		@Override
+		public void flush() throws IOException {
+			synchronized (AsyncResponse.this) {
+				checkOpen();
+				queueChunk();
+			}
+			onWritePossible();
+		}
+
+		/** Close the stream.  The request is completed once all
+		 * queued data has been sent. */
+		@Override
+		public void close() {
+			synchronized (AsyncResponse.this) {
+				if (closed)
+					return;
+				closed = true;
+				queueChunk();
+			}
+			onWritePossible();
+		}
+
+		/** Check if data can be written without blocking */
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		/** Setting a write listener is not supported */
+		@Override
+		public void setWriteListener(WriteListener wl) {
+			throw new IllegalStateException();
+		}
+
+		/** Send queued data while the container stream is ready.
+		 * Called by the container, and after data is queued. */
+		@Override
+		public void onWritePossible() {
+			try {
+				if (sendQueued())
+					complete();
+			}
+			catch (IOException e) {
+				onError(e);
+			}
+		}
+
+		/** Send queued data while the container stream is ready.
+		 * @return true if all data has been sent after close. */
+		private boolean sendQueued() throws IOException {
+			synchronized (AsyncResponse.this) {
+				if (error != null)
+					return closed;
+				while (!chunks.isEmpty() && out.isReady()) {
+					byte[] c = chunks.poll();
+					queued -= c.length;
+					out.write(c);
+					AsyncResponse.this.notifyAll();
+				}
+				return closed && chunks.isEmpty() &&
+				       out.isReady();
+			}
+		}
+
+		/** Handle an error writing to the client */
+		@Override
+		public void onError(Throwable t) {
+			setError(t);
+			complete();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+/**
+ * HTTP cache validator for sample data.  It is derived from the file the
+ * data is read from (and the zip entry CRC, for .traffic files), so it can
+ * be checked without reading any sample data.
+ *
+ * @author Douglas Lau
+ */
+public class CacheValidator {
+
+	/** Last modified time of source file */
+	private final long mtime;
+
+	/** Size of source file */
+	private final long size;
+
+	/** CRC of zip entry, or -1 for regular files */
+	private final long crc;
+
+	/** Flag indicating data is in a .traffic archive (will not change) */
+	private final boolean archived;
+
+	/** Create a new cache validator.
+	 * @param mt Last modified time of source file.
+	 * @param sz Size of source file.
+	 * @param c CRC of zip entry, or -1 for regular files.
+	 * @param a true if data is in a .traffic archive. */
+	public CacheValidator(long mt, long sz, long c, boolean a) {
+		mtime = mt;
+		size = sz;
+		crc = c;
+		archived = a;
+	}
+
+	/** Get the last modified time of the source file */
+	public long getModified() {
+		return mtime;
+	}
+
+	/** Check if the data is in a .traffic archive */
+	public boolean isArchived() {
+		return archived;
+	}
+
+	/** Get an unquoted tag of the source data.
+	 * @return Tag (mtime-size, plus CRC if known), in hex. */
+	public String getTag() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Long.toHexString(mtime));
+		sb.append('-');
+		sb.append(Long.toHexString(size));
+		if (crc >= 0) {
+			sb.append('-');
+			sb.append(Long.toHexString(crc));
+		}
+		return sb.toString();
+	}
+
+	/** Get an entity tag for one representation of the data.
+	 * @param variant Representation variant (e.g. "json").
+	 * @return Quoted entity tag. */
+	public String getETag(String variant) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('"');
+		sb.append(getTag());
+		if (variant.length() > 0) {
+			sb.append('-');
+			sb.append(variant);
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+}
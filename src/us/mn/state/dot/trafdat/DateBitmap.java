@@ -0,0 +1,186 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A compressed bitmap of dates, with one bit per day.  The bitmap is stored
+ * as a sorted list of runs of consecutive days, since a sensor usually has
+ * data for long stretches of time.  Days are numbered from 1970-01-01.
+ *
+ * @author Douglas Lau
+ */
+public class DateBitmap {
+
+	/** Convert a date to a day number.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Number of days since 1970-01-01, or -1 if invalid. */
+	static public int toDay(String date) {
+		if (!SensorArchive.isValidDate(date))
+			return -1;
+		int y = Integer.parseInt(date.substring(0, 4));
+		int m = Integer.parseInt(date.substring(4, 6));
+		int d = Integer.parseInt(date.substring(6, 8));
+		if (m < 1 || m > 12 || d < 1 || d > 31)
+			return -1;
+		// Days from civil date, with years starting in March
+		if (m <= 2)
+			y--;
+		int era = y / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m + ((m > 2) ? -3 : 9)) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		int day = era * 146097 + doe - 719468;
+		return (day >= 0 && date.equals(toDate(day))) ? day : -1;
+	}
+
+	/** Convert a day number to a date.
+	 * @param day Number of days since 1970-01-01.
+	 * @return String date (8 digits yyyyMMdd). */
+	static public String toDate(int day) {
+		assert day >= 0;
+		int z = day + 719468;
+		int era = z / 146097;
+		int doe = z - era * 146097;
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int d = doy - (153 * mp + 2) / 5 + 1;
+		int m = mp + ((mp < 10) ? 3 : -9);
+		int y = yoe + era * 400 + ((m <= 2) ? 1 : 0);
+		return String.format("%04d%02d%02d", y, m, d);
+	}
+
+	/** Initial capacity of run arrays */
+	static private final int INITIAL_CAPACITY = 4;
+
+	/** First day of each run (inclusive) */
+	private int[] starts = new int[INITIAL_CAPACITY];
+
+	/** Last day of each run (exclusive) */
+	private int[] ends = new int[INITIAL_CAPACITY];
+
+	/** Number of runs */
+	private int n_runs = 0;
+
+	/** Create a new empty date bitmap */
+	public DateBitmap() { }
+
+	/** Create a copy of a date bitmap.
+	 * @param bm Bitmap to copy. */
+	public DateBitmap(DateBitmap bm) {
+		starts = Arrays.copyOf(bm.starts, bm.starts.length);
+		ends = Arrays.copyOf(bm.ends, bm.ends.length);
+		n_runs = bm.n_runs;
+	}
+
+	/** Find the first run which ends at or after a day.
+	 * @param day Day number.
+	 * @return Index of run, or n_runs if there is none. */
+	private int findRun(int day) {
+		int lo = 0;
+		int hi = n_runs;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ends[mid] < day)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/** Check if a day is in the bitmap */
+	public boolean contains(int day) {
+		int i = findRun(day);
+		return i < n_runs && starts[i] <= day && day < ends[i];
+	}
+
+	/** Add a day to the bitmap.  Adding days in order only extends the
+	 * last run.
+	 * @param day Day number. */
+	public void add(int day) {
+		int i = findRun(day);
+		if (i < n_runs && starts[i] <= day && day < ends[i])
+			return;
+		if (i < n_runs && ends[i] == day) {
+			ends[i]++;
+			if (i + 1 < n_runs && starts[i + 1] == ends[i]) {
+				ends[i] = ends[i + 1];
+				removeRun(i + 1);
+			}
+		} else if (i < n_runs && starts[i] == day + 1)
+			starts[i] = day;
+		else
+			insertRun(i, day, day + 1);
+	}
+
+	/** Remove a day from the bitmap.
+	 * @param day Day number. */
+	public void remove(int day) {
+		int i = findRun(day);
+		if (i >= n_runs || day < starts[i] || day >= ends[i])
+			return;
+		if (starts[i] == day && ends[i] == day + 1)
+			removeRun(i);
+		else if (starts[i] == day)
+			starts[i]++;
+		else if (ends[i] == day + 1)
+			ends[i]--;
+		else {
+			insertRun(i + 1, day + 1, ends[i]);
+			ends[i] = day;
+		}
+	}
+
+	/** Insert a run */
+	private void insertRun(int i, int s, int e) {
+		if (n_runs == starts.length) {
+			starts = Arrays.copyOf(starts, n_runs * 2);
+			ends = Arrays.copyOf(ends, n_runs * 2);
+		}
+		System.arraycopy(starts, i, starts, i + 1, n_runs - i);
+		System.arraycopy(ends, i, ends, i + 1, n_runs - i);
+		starts[i] = s;
+		ends[i] = e;
+		n_runs++;
+	}
+
+	/** Remove a run */
+	private void removeRun(int i) {
+		n_runs--;
+		System.arraycopy(starts, i + 1, starts, i, n_runs - i);
+		System.arraycopy(ends, i + 1, ends, i, n_runs - i);
+	}
+
+	/** Check if the bitmap is empty */
+	public boolean isEmpty() {
+		return n_runs == 0;
+	}
+
+	/** Get an iterator of all dates in the bitmap.
+	 * @return Iterator of dates (8 digits yyyyMMdd), in order. */
+	public Iterator<String> dates() {
+		ArrayList<String> dates = new ArrayList<String>();
+		for (int i = 0; i < n_runs; i++) {
+			for (int day = starts[i]; day < ends[i]; day++)
+				dates.add(toDate(day));
+		}
+		return dates.iterator();
+	}
+}
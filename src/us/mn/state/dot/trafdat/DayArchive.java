@@ -0,0 +1,365 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Columnar day archive (.tday file).  All binned sample files for one date
+ * are stored in fixed-size slots, one column per sample file type, so a
+ * sample file is located with a binary search of the sensor directory and
+ * read as one slice of a memory-mapped file.  The file layout (all values
+ * big-endian) is:
+ *
+ *   header:  magic, version, source .traffic mtime and size, number of
+ *            sensors, number of columns
+ *   columns: extension (8 bytes, NUL padded), sample width, samples per
+ *            file, offset of column
+ *   sensors: name offsets (one per sensor, plus end), then ASCII names in
+ *            sorted order
+ *   column:  presence bitmap (one bit per sensor, padded to 8 bytes),
+ *            then one slot per sensor (width * samples bytes)
+ *
+ * Like .traffic files, a day archive is mapped, so it must be replaced
+ * atomically by renaming a new file into place.
+ *
+ * @author Douglas Lau
+ */
+public class DayArchive {
+
+	/** Day archive file extension */
+	static public final String EXT = ".tday";
+
+	/** Magic number for day archive files ("TDAY") */
+	static final int MAGIC = 0x54444159;
+
+	/** Version of day archive file format */
+	static final int VERSION = 1;
+
+	/** Size of file header */
+	static final int HEADER_SIZE = 32;
+
+	/** Maximum length of a column extension */
+	static final int EXT_LEN = 8;
+
+	/** Size of one column table entry */
+	static final int COLUMN_SIZE = EXT_LEN + 16;
+
+	/** Maximum number of day archives cached in memory */
+	static private final int MAX_CACHED = 32;
+
+	/** Cache of mapped day archives */
+	static private final LinkedHashMap<File, DayArchive> CACHE =
+		new LinkedHashMap<File, DayArchive>(MAX_CACHED, 0.75f, true)
+	{
+		protected boolean removeEldestEntry(
+			Map.Entry<File, DayArchive> e)
+		{
+			return size() > MAX_CACHED;
+		}
+	};
+
+	/** Pad a length to a multiple of 8 bytes */
+	static long pad8(long n) {
+		return (n + 7) & ~7L;
+	}
+
+	/** Get the size of a presence bitmap */
+	static long bitmapSize(int n_sensors) {
+		return pad8((n_sensors + 7) / 8);
+	}
+
+	/** Lookup a day archive.  It is only valid if the .traffic file it
+	 * was converted from has not changed since (or has been removed).
+	 * @param file Day archive file.
+	 * @param traffic Source .traffic file.
+	 * @return Day archive, or null if the file is missing or invalid. */
+	static public DayArchive lookup(File file, File traffic)
+		throws IOException
+	{
+		if (!file.isFile() || !file.canRead())
+			return null;
+		long mtime = file.lastModified();
+		long size = file.length();
+		DayArchive da = getCached(file);
+		boolean hit = da != null && da.mtime == mtime &&
+			da.size == size;
+		Metrics.DAY_ARCHIVES.record(hit);
+		if (!hit) {
+			da = open(file, mtime, size);
+			if (da == null)
+				return null;
+			putCached(file, da);
+		}
+		return da.isSource(traffic) ? da : null;
+	}
+
+	/** Get a cached day archive */
+	static private synchronized DayArchive getCached(File file) {
+		return CACHE.get(file);
+	}
+
+	/** Put a day archive into the cache */
+	static private synchronized void putCached(File file, DayArchive da) {
+		CACHE.put(file, da);
+	}
+
+	/** Open and map a day archive file.
+	 * @return Day archive, or null if the file is invalid. */
+	static private DayArchive open(File file, long mtime, long size)
+		throws IOException
+	{
+		if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY,
+				0, size);
+			return isValid(buf) ? new DayArchive(buf, mtime, size)
+			                    : null;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/** Check if a buffer contains a valid day archive.  Every offset and
+	 * size in the header is checked against the file size, so a corrupt
+	 * or truncated file is just not used. */
+	static private boolean isValid(ByteBuffer buf) {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+			return false;
+		int n_sensors = buf.getInt(24);
+		int n_columns = buf.getInt(28);
+		if (n_sensors < 0 || n_columns < 0)
+			return false;
+		long table = HEADER_SIZE + (long)n_columns * COLUMN_SIZE;
+		long names = table + 4L * (n_sensors + 1L);
+		if (names > buf.limit())
+			return false;
+		if (!isValidNames(buf, (int)table, (int)names, n_sensors))
+			return false;
+		long end = names + buf.getInt((int)names - 4);
+		long bm = bitmapSize(n_sensors);
+		for (int c = 0; c < n_columns; c++) {
+			int e = HEADER_SIZE + c * COLUMN_SIZE + EXT_LEN;
+			int width = buf.getInt(e);
+			int n_samples = buf.getInt(e + 4);
+			long slot = (long)width * n_samples;
+			long off = buf.getLong(e + 8);
+			if (width <= 0 || n_samples <= 0 ||
+			    slot > Integer.MAX_VALUE || off < end ||
+			    off + bm + slot * n_sensors > buf.limit())
+				return false;
+		}
+		return true;
+	}
+
+	/** Check that the sensor name offsets are in order, and that every
+	 * name is within the file.
+	 * @param buf Mapped file buffer.
+	 * @param table Offset of sensor name offset table.
+	 * @param names Offset of sensor names.
+	 * @param n_sensors Number of sensors.
+	 * @return true if all names are valid. */
+	static private boolean isValidNames(ByteBuffer buf, int table,
+		int names, int n_sensors)
+	{
+		int prev = 0;
+		for (int i = 0; i <= n_sensors; i++) {
+			int off = buf.getInt(table + 4 * i);
+			if (off < prev || names + (long)off > buf.limit())
+				return false;
+			prev = off;
+		}
+		return true;
+	}
+
+	/** Mapped file buffer */
+	private final ByteBuffer buf;
+
+	/** Last modified time of file */
+	private final long mtime;
+
+	/** Size of file */
+	private final long size;
+
+	/** Number of sensors */
+	private final int n_sensors;
+
+	/** Column extensions */
+	private final String[] exts;
+
+	/** Size of one slot in each column */
+	private final int[] slots;
+
+	/** Offset of each column */
+	private final int[] offsets;
+
+	/** Offset of sensor name offset table */
+	private final int name_table;
+
+	/** Offset of sensor names */
+	private final int names;
+
+	/** Create a day archive from a valid buffer */
+	private DayArchive(ByteBuffer b, long mt, long sz) {
+		buf = b;
+		mtime = mt;
+		size = sz;
+		n_sensors = buf.getInt(24);
+		int n_columns = buf.getInt(28);
+		exts = new String[n_columns];
+		slots = new int[n_columns];
+		offsets = new int[n_columns];
+		for (int c = 0; c < n_columns; c++) {
+			int e = HEADER_SIZE + c * COLUMN_SIZE;
+			exts[c] = readExt(e);
+			slots[c] = buf.getInt(e + EXT_LEN) *
+				buf.getInt(e + EXT_LEN + 4);
+			offsets[c] = (int)buf.getLong(e + EXT_LEN + 8);
+		}
+		name_table = HEADER_SIZE + n_columns * COLUMN_SIZE;
+		names = name_table + 4 * (n_sensors + 1);
+	}
+
+	/** Read a column extension */
+	private String readExt(int off) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < EXT_LEN; i++) {
+			byte b = buf.get(off + i);
+			if (b == 0)
+				break;
+			sb.append((char)b);
+		}
+		return sb.toString();
+	}
+
+	/** Check if a .traffic file is the source of this archive */
+	private boolean isSource(File traffic) {
+		return !traffic.exists() ||
+		      (traffic.lastModified() == buf.getLong(8) &&
+		       traffic.length() == buf.getLong(16));
+	}
+
+	/** Get the last modified time of the file */
+	public long getModified() {
+		return mtime;
+	}
+
+	/** Get the size of the file */
+	public long getSize() {
+		return size;
+	}
+
+	/** Find the column for a sample file name.
+	 * @return Column index, or -1 if not found. */
+	private int findColumn(String name) {
+		for (int c = 0; c < exts.length; c++) {
+			if (name.endsWith(exts[c]))
+				return c;
+		}
+		return -1;
+	}
+
+	/** Find a sensor with a binary search of the sensor directory.
+	 * @param sid Sensor ID.
+	 * @return Sensor index, or -1 if not found. */
+	private int findSensor(String sid) {
+		int lo = 0;
+		int hi = n_sensors - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareSensor(mid, sid);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** Compare a sensor name with a sensor ID, without creating a
+	 * string for the name. */
+	private int compareSensor(int i, String sid) {
+		int s = names + buf.getInt(name_table + 4 * i);
+		int e = names + buf.getInt(name_table + 4 * (i + 1));
+		int len = sid.length();
+		for (int j = 0; s + j < e && j < len; j++) {
+			int c = (buf.get(s + j) & 0xFF) - sid.charAt(j);
+			if (c != 0)
+				return c;
+		}
+		return (e - s) - len;
+	}
+
+	/** Get the name of a sensor */
+	private String getSensor(int i) {
+		int s = names + buf.getInt(name_table + 4 * i);
+		int e = names + buf.getInt(name_table + 4 * (i + 1));
+		StringBuilder sb = new StringBuilder(e - s);
+		for (int j = s; j < e; j++)
+			sb.append((char)(buf.get(j) & 0xFF));
+		return sb.toString();
+	}
+
+	/** Check if a sensor has data in a column */
+	private boolean isPresent(int c, int i) {
+		return (buf.get(offsets[c] + i / 8) & (1 << (i % 8))) != 0;
+	}
+
+	/** Get the samples of a sample file.
+	 * @param name Sample file name.
+	 * @return Read-only buffer of sample data, or null if the sample
+	 *         file is not in the archive. */
+	public ByteBuffer getSamples(String name) {
+		int c = findColumn(name);
+		if (c < 0)
+			return null;
+		String sid = name.substring(0, name.length() -
+			exts[c].length());
+		int i = findSensor(sid);
+		if (i < 0 || !isPresent(c, i))
+			return null;
+		ByteBuffer b = buf.asReadOnlyBuffer();
+		int off = offsets[c] + (int)bitmapSize(n_sensors) +
+			i * slots[c];
+		b.limit(off + slots[c]);
+		b.position(off);
+		return b.slice();
+	}
+
+	/** Check if the archive contains a sample file.
+	 * @param name Sample file name. */
+	public boolean contains(String name) {
+		return getSamples(name) != null;
+	}
+
+	/** Add all sensors with sample data to a set */
+	public void addSensors(TreeSet<String> sensors) {
+		for (int i = 0; i < n_sensors; i++)
+			sensors.add(getSensor(i));
+	}
+}
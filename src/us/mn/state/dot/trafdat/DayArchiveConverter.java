@@ -0,0 +1,297 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Offline converter from .traffic files to columnar day archives (.tday
+ * files).  Every binned sample file with the expected size is copied into
+ * its column; anything else (such as .vlog files) is left in the .traffic
+ * file, which is still read as a fallback.
+ *
+ * Usage: DayArchiveConverter [-f] path...
+ * Each path is a .traffic file, or a directory to search for them.  A day
+ * archive is only written if it is missing or older than its .traffic
+ * file, unless -f is given.
+ *
+ * @author Douglas Lau
+ */
+public class DayArchiveConverter {
+
+	/** Traffic file extension */
+	static private final String TRAFFIC_EXT = ".traffic";
+
+	/** Extension for temporary files */
+	static private final String TEMP_EXT = ".tmp";
+
+	/** Missing sample value (for slots of absent sample files) */
+	static private final byte MISSING = -1;
+
+	/** Get the day archive file for a .traffic file */
+	static public File dayFile(File traffic) {
+		String n = traffic.getName();
+		n = n.substring(0, n.length() - TRAFFIC_EXT.length());
+		return new File(traffic.getParentFile(), n + DayArchive.EXT);
+	}
+
+	/** One column of sample files */
+	static private class Column {
+		private final String ext;
+		private final int width;
+		private final int samples;
+		private final TreeMap<String, ZipEntry> entries =
+			new TreeMap<String, ZipEntry>();
+		private long offset;
+		private Column(String e, SampleFormat fmt) {
+			ext = e;
+			width = fmt.getWidth();
+			samples = fmt.samplesPerDay();
+		}
+		private int slotSize() {
+			return width * samples;
+		}
+	}
+
+	/** Flag to convert even if day archive is current */
+	private final boolean force;
+
+	/** Create a new converter */
+	private DayArchiveConverter(boolean f) {
+		force = f;
+	}
+
+	/** Convert a .traffic file, or all .traffic files in a directory */
+	private void convertPath(File path) throws IOException {
+		if (path.isDirectory()) {
+			String[] names = path.list();
+			if (names != null) {
+				Arrays.sort(names);
+				for (String n: names)
+					convertPath(new File(path, n));
+			}
+		} else if (path.getName().endsWith(TRAFFIC_EXT)) {
+			File day = dayFile(path);
+			if (force || day.lastModified() < path.lastModified())
+				convert(path, day);
+		}
+	}
+
+	/** Convert one .traffic file to a day archive.
+	 * @param traffic Source .traffic file.
+	 * @param day Day archive file to write. */
+	static public void convert(File traffic, File day) throws IOException {
+		long mtime = traffic.lastModified();
+		long size = traffic.length();
+		ZipFile zip = new ZipFile(traffic);
+		try {
+			TreeMap<String, Column> cols = readColumns(zip);
+			File tmp = new File(day.getPath() + TEMP_EXT);
+			try {
+				write(zip, cols, mtime, size, tmp);
+				if (!tmp.renameTo(day)) {
+					throw new IOException(
+						"rename failed: " + day);
+				}
+			}
+			finally {
+				tmp.delete();
+			}
+		}
+		finally {
+			zip.close();
+		}
+		System.out.println("Converted " + traffic + " -> " + day);
+	}
+
+	/** Sort the binned sample files of a .traffic file into columns */
+	static private TreeMap<String, Column> readColumns(ZipFile zip) {
+		TreeMap<String, Column> cols = new TreeMap<String, Column>();
+		Enumeration<? extends ZipEntry> en = zip.entries();
+		while (en.hasMoreElements()) {
+			ZipEntry ze = en.nextElement();
+			String name = ze.getName();
+			SampleFormat fmt = SampleFormat.lookup(name);
+			if (fmt == null)
+				continue;
+			String ext = fmt.getExt();
+			String sid = name.substring(0, name.length() -
+				ext.length());
+			Column c = cols.get(ext);
+			if (c == null) {
+				if (ext.length() > DayArchive.EXT_LEN)
+					continue;
+				c = new Column(ext, fmt);
+				cols.put(ext, c);
+			}
+			if (ze.getSize() == c.slotSize() && isAscii(sid))
+				c.entries.put(sid, ze);
+		}
+		return cols;
+	}
+
+	/** Check if a sensor ID is ASCII */
+	static private boolean isAscii(String sid) {
+		for (int i = 0; i < sid.length(); i++) {
+			if (sid.charAt(i) > 127)
+				return false;
+		}
+		return sid.length() > 0;
+	}
+
+	/** Write a day archive file */
+	static private void write(ZipFile zip, TreeMap<String, Column> cols,
+		long mtime, long size, File file) throws IOException
+	{
+		TreeSet<String> sensors = new TreeSet<String>();
+		for (Column c: cols.values())
+			sensors.addAll(c.entries.keySet());
+		String[] sids = sensors.toArray(new String[0]);
+		ArrayList<Column> columns = new ArrayList<Column>(
+			cols.values());
+		long pos = DayArchive.HEADER_SIZE +
+			(long)columns.size() * DayArchive.COLUMN_SIZE +
+			4L * (sids.length + 1);
+		for (String s: sids)
+			pos += s.length();
+		pos = DayArchive.pad8(pos);
+		long bm = DayArchive.bitmapSize(sids.length);
+		for (Column c: columns) {
+			c.offset = pos;
+			pos = DayArchive.pad8(pos + bm +
+				(long)c.slotSize() * sids.length);
+		}
+		if (pos > Integer.MAX_VALUE)
+			throw new IOException("Too large: " + pos);
+		DataOutputStream dos = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			writeHeader(dos, mtime, size, sids, columns);
+			for (Column c: columns)
+				writeColumn(dos, zip, c, sids);
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	/** Write the header, column table and sensor directory */
+	static private void writeHeader(DataOutputStream dos, long mtime,
+		long size, String[] sids, ArrayList<Column> columns)
+		throws IOException
+	{
+		dos.writeInt(DayArchive.MAGIC);
+		dos.writeInt(DayArchive.VERSION);
+		dos.writeLong(mtime);
+		dos.writeLong(size);
+		dos.writeInt(sids.length);
+		dos.writeInt(columns.size());
+		for (Column c: columns) {
+			byte[] e = Arrays.copyOf(c.ext.getBytes("US-ASCII"),
+				DayArchive.EXT_LEN);
+			dos.write(e);
+			dos.writeInt(c.width);
+			dos.writeInt(c.samples);
+			dos.writeLong(c.offset);
+		}
+		int off = 0;
+		dos.writeInt(off);
+		for (String s: sids) {
+			off += s.length();
+			dos.writeInt(off);
+		}
+		for (String s: sids)
+			dos.writeBytes(s);
+		padTo(dos, columns.isEmpty() ? dos.size() :
+			columns.get(0).offset);
+	}
+
+	/** Write one column */
+	static private void writeColumn(DataOutputStream dos, ZipFile zip,
+		Column c, String[] sids) throws IOException
+	{
+		padTo(dos, c.offset);
+		byte[] bitmap = new byte[(int)DayArchive.bitmapSize(
+			sids.length)];
+		for (int i = 0; i < sids.length; i++) {
+			if (c.entries.containsKey(sids[i]))
+				bitmap[i / 8] |= 1 << (i % 8);
+		}
+		dos.write(bitmap);
+		byte[] slot = new byte[c.slotSize()];
+		for (String sid: sids) {
+			ZipEntry ze = c.entries.get(sid);
+			if (ze != null)
+				readEntry(zip, ze, slot);
+			else
+				Arrays.fill(slot, MISSING);
+			dos.write(slot);
+		}
+	}
+
+	/** Read a zip entry into a slot */
+	static private void readEntry(ZipFile zip, ZipEntry ze, byte[] slot)
+		throws IOException
+	{
+		InputStream in = zip.getInputStream(ze);
+		try {
+			new DataInputStream(in).readFully(slot);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** Pad the output with zeros to an offset */
+	static private void padTo(DataOutputStream dos, long off)
+		throws IOException
+	{
+		while (dos.size() < off)
+			dos.write(0);
+	}
+
+	/** Convert .traffic files from the command line */
+	static public void main(String[] args) throws IOException {
+		boolean f = false;
+		ArrayList<File> paths = new ArrayList<File>();
+		for (String a: args) {
+			if ("-f".equals(a))
+				f = true;
+			else
+				paths.add(new File(a));
+		}
+		if (paths.isEmpty()) {
+			System.err.println("Usage: DayArchiveConverter [-f] " +
+				"path...");
+			System.exit(1);
+		}
+		DayArchiveConverter dac = new DayArchiveConverter(f);
+		for (File p: paths)
+			dac.convertPath(p);
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sample files derived from one vehicle event log, for one sample period.
+ * All derived files are binned together in a single pass over the log.
+ * Derived bins are cached in memory, and stored in a sidecar file so they
+ * survive a restart.  The bins are tagged with a cache validator of the log
+ * (and the length class bounds), so they are rebuilt whenever the log is
+ * modified.
+ *
+ * A derived file name has a sample type and period, such as .v30 or
+ * .s300; the period must be at least 20 seconds, and divide evenly into a
+ * day.  Files with a period of 30 seconds have the same format as archived
+ * files; other periods use 16-bit samples.
+ *
+ * @author Douglas Lau
+ */
+public class DerivedBins {
+
+	/** Sample types which can be derived from a log */
+	static private final String[] TYPES = {
+		"v", "s", "c", "vmc", "vs", "vm", "vl"
+	};
+
+	/** Native sample period (seconds) of archived files */
+	static private final int NATIVE_PERIOD = 30;
+
+	/** Minimum sample period (seconds) */
+	static private final int MIN_PERIOD = 20;
+
+	/** Maximum number of digits in a sample period */
+	static private final int MAX_PERIOD_DIGITS = 5;
+
+	/** Magic number for derived bin files ("TBIN") */
+	static private final int MAGIC = 0x5442494e;
+
+	/** Version of derived bin file format */
+	static private final int VERSION = 2;
+
+	/** Maximum number of bytes of derived bins cached in memory */
+	static private final long MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+	/** Cache of recently used derived bins (weighed in bytes) */
+	static private final SidecarCache<String, DerivedBins> CACHE =
+		new SidecarCache<String, DerivedBins>(MAX_CACHED_BYTES)
+	{
+		protected long weigh(DerivedBins v) {
+			return v.byteSize();
+		}
+		protected DerivedBins read(DataInputStream dis)
+			throws IOException
+		{
+			return DerivedBins.read(dis);
+		}
+		protected void write(DerivedBins v, DataOutputStream dos)
+			throws IOException
+		{
+			v.write(dos);
+		}
+	};
+
+	/** Create a sample bin for a derived sample type.
+	 * @param type Sample type.
+	 * @param period Sample period (seconds).
+	 * @return Sample bin, or null if type is not derived. */
+	static private SampleBin createBin(String type, int period) {
+		int n = SampleFormat.SECONDS_PER_DAY / period;
+		int w = width(type, period);
+		if (type.equals("v"))
+			return new VolumeSampleBin(n, w);
+		else if (type.equals("s"))
+			return new SpeedSampleBin(n, w);
+		else if (type.equals("c"))
+			return new ScanSampleBin(n, w);
+		else if (type.equals("vmc"))
+			return new LengthSampleBin(n, w, LengthClass.MOTORCYCLE);
+		else if (type.equals("vs"))
+			return new LengthSampleBin(n, w, LengthClass.SHORT);
+		else if (type.equals("vm"))
+			return new LengthSampleBin(n, w, LengthClass.MEDIUM);
+		else if (type.equals("vl"))
+			return new LengthSampleBin(n, w, LengthClass.LONG);
+		else
+			return null;
+	}
+
+	/** Get the sample width of an archived sample type */
+	static private int nativeWidth(String type) {
+		return type.equals("c") ? 2 : 1;
+	}
+
+	/** Get the sample width of a derived sample type.
+	 * @param type Sample type.
+	 * @param period Sample period (seconds).
+	 * @return Sample width (bytes). */
+	static private int width(String type, int period) {
+		return (period == NATIVE_PERIOD) ? nativeWidth(type) : 2;
+	}
+
+	/** Get the length of binned data for a derived sample type.
+	 * @param type Sample type.
+	 * @param period Sample period (seconds).
+	 * @return Length of data (bytes). */
+	static private int dataLength(String type, int period) {
+		return SampleFormat.SECONDS_PER_DAY / period *
+			width(type, period);
+	}
+
+	/** Check if a sample period can be derived */
+	static private boolean isValidPeriod(int period) {
+		return period >= MIN_PERIOD &&
+		       SampleFormat.SECONDS_PER_DAY % period == 0;
+	}
+
+	/** Get the sample width of a derived file.
+	 * @param name Name of sample file.
+	 * @return Sample width (bytes), or 0 if not derived. */
+	static public int sampleWidth(String name) {
+		int period = derivedPeriod(name);
+		if (period == NATIVE_PERIOD)
+			return nativeWidth(TYPES[typeIndex(name)]);
+		else
+			return (period > 0) ? 2 : 0;
+	}
+
+	/** Get the index of a derived sample type.
+	 * @param name Name of sample file.
+	 * @return Index into TYPES, or -1 if not derived. */
+	static private int typeIndex(String name) {
+		int i = name.lastIndexOf('.') + 1;
+		int j = i;
+		while (j < name.length() && Character.isLetter(name.charAt(j)))
+			j++;
+		String type = name.substring(i, j);
+		for (int t = 0; t < TYPES.length; t++) {
+			if (TYPES[t].equals(type))
+				return t;
+		}
+		return -1;
+	}
+
+	/** Get the sample period of a derived file.
+	 * @param name Name of sample file.
+	 * @return Sample period (seconds), or -1 if not derived. */
+	static public int derivedPeriod(String name) {
+		int t = typeIndex(name);
+		if (t < 0)
+			return -1;
+		int i = name.lastIndexOf('.') + 1 + TYPES[t].length();
+		String p = name.substring(i);
+		if (p.length() < 1 || p.length() > MAX_PERIOD_DIGITS ||
+		    p.charAt(0) == '0')
+			return -1;
+		for (int j = 0; j < p.length(); j++) {
+			char c = p.charAt(j);
+			if (c < '0' || c > '9')
+				return -1;
+		}
+		int period = Integer.parseInt(p);
+		return isValidPeriod(period) ? period : -1;
+	}
+
+	/** Check if a sample file can be derived from a vehicle event log.
+	 * @param name Name of sample file.
+	 * @return true if sample file can be derived. */
+	static public boolean isDerived(String name) {
+		return derivedPeriod(name) > 0;
+	}
+
+	/** Lookup cached derived bins.  The bins are read from the sidecar
+	 * file if they are not cached in memory.
+	 * @param key Cache key (district / date / sensor / period).
+	 * @param sidecar Sidecar file.
+	 * @param tag Cache validator tag of the vehicle event log.
+	 * @return Derived bins, or null if not cached or not current. */
+	static public DerivedBins lookup(String key, File sidecar, String tag) {
+		DerivedBins db = CACHE.get(key);
+		boolean hit = db != null && db.tag.equals(tag);
+		Metrics.DERIVED_BINS.record(hit);
+		if (hit)
+			return db;
+		db = CACHE.readFile(sidecar);
+		if (db != null && db.tag.equals(tag)) {
+			CACHE.put(key, db);
+			return db;
+		}
+		return null;
+	}
+
+	/** Read derived bins from a data input stream.  Lengths are checked
+	 * against the sample period, so a corrupt file is just a miss. */
+	static private DerivedBins read(DataInputStream dis)
+		throws IOException
+	{
+		if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+			return null;
+		String tag = dis.readUTF();
+		int period = dis.readInt();
+		if (!isValidPeriod(period))
+			return null;
+		DerivedBins db = new DerivedBins(tag, period);
+		if (dis.readInt() != TYPES.length)
+			return null;
+		for (int i = 0; i < TYPES.length; i++) {
+			if (!TYPES[i].equals(dis.readUTF()))
+				return null;
+			int len = dis.readInt();
+			if (len != dataLength(TYPES[i], period))
+				return null;
+			byte[] data = new byte[len];
+			dis.readFully(data);
+			db.data[i] = data;
+		}
+		return db;
+	}
+
+	/** Bin a vehicle event log into all derived sample files.
+	 * @param tag Cache validator tag of the vehicle event log.
+	 * @param period Sample period (seconds).
+	 * @param in Input stream to read .vlog events.
+	 * @param vi Time index to build while binning, or null.
+	 * @return Derived bins. */
+	static public DerivedBins bin(String tag, int period, InputStream in,
+		VLogIndex vi) throws IOException
+	{
+		SampleBin[] bins = new SampleBin[TYPES.length];
+		for (int i = 0; i < TYPES.length; i++)
+			bins[i] = createBin(TYPES[i], period);
+		new VehicleEventLog(bins, period, vi).binSamples(in);
+		DerivedBins db = new DerivedBins(tag, period);
+		for (int i = 0; i < TYPES.length; i++)
+			db.data[i] = bins[i].getData();
+		return db;
+	}
+
+	/** Cache validator tag of the vehicle event log */
+	private final String tag;
+
+	/** Sample period (seconds) */
+	private final int period;
+
+	/** Binned data for each derived sample type */
+	private final byte[][] data = new byte[TYPES.length][];
+
+	/** Create new derived bins */
+	private DerivedBins(String t, int p) {
+		tag = t;
+		period = p;
+	}
+
+	/** Get the number of bytes of binned data */
+	private long byteSize() {
+		long n = 0;
+		for (byte[] d: data)
+			n += d.length;
+		return n;
+	}
+
+	/** Get the binned data for a derived sample file.
+	 * @param name Name of sample file.
+	 * @return Binned sample data, or null if not derived. */
+	public byte[] getData(String name) {
+		if (derivedPeriod(name) != period)
+			return null;
+		int i = typeIndex(name);
+		return (i >= 0) ? data[i] : null;
+	}
+
+	/** Store the derived bins in the cache and a sidecar file.
+	 * @param key Cache key (district / date / sensor / period).
+	 * @param sidecar Sidecar file. */
+	public void store(String key, File sidecar) {
+		CACHE.put(key, this);
+		CACHE.writeFile(sidecar, this);
+	}
+
+	/** Write the derived bins to a data output stream */
+	private void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeUTF(tag);
+		dos.writeInt(period);
+		dos.writeInt(TYPES.length);
+		for (int i = 0; i < TYPES.length; i++) {
+			dos.writeUTF(TYPES[i]);
+			dos.writeInt(data[i].length);
+			dos.write(data[i]);
+		}
+	}
+}
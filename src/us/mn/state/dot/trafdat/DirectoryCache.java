@@ -0,0 +1,273 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Cache of filtered directory listings.  Each listing is invalidated when
+ * a watch service reports a change in the directory.  Since a watch
+ * service can miss changes (on network file systems, for example), every
+ * listing is also scanned again after a maximum age.
+ *
+ * @author Douglas Lau
+ */
+public class DirectoryCache {
+
+	/** Maximum age (ms) of a cached listing */
+	static private final long MAX_AGE_MS = 5 * 60 * 1000;
+
+	/** Filter for directory entries */
+	static public interface Filter {
+
+		/** Filter one directory entry.
+		 * @param dir Directory being listed.
+		 * @param name Name of entry.
+		 * @return Value to add to the listing, or null to skip. */
+		String accept(File dir, String name) throws IOException;
+	}
+
+	/** A cached directory listing */
+	static private class Listing {
+		private final long stamp;
+		private final SortedSet<String> values;
+		private Listing(long st, SortedSet<String> v) {
+			stamp = st;
+			values = v;
+		}
+	}
+
+	/** All directory caches */
+	static private final ArrayList<DirectoryCache> CACHES =
+		new ArrayList<DirectoryCache>();
+
+	/** Watched directories */
+	static private final HashSet<Path> WATCHED = new HashSet<Path>();
+
+	/** Watch service for cached directories (null if not available) */
+	static private WatchService watcher;
+
+	/** Flag indicating watch service was started */
+	static private boolean started = false;
+
+	/** Watch a directory for entries being created or deleted.  Other
+	 * changes (such as permissions) are left to the maximum age, since
+	 * files are modified constantly in the current date directory.
+	 * @param dir Directory to watch. */
+	static private synchronized void watch(File dir) {
+		if (!started) {
+			started = true;
+			watcher = startWatcher();
+		}
+		if (watcher == null)
+			return;
+		Path p = dir.toPath();
+		if (WATCHED.contains(p))
+			return;
+		try {
+			p.register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE);
+			WATCHED.add(p);
+		}
+		catch (IOException e) {
+			// Fall back on maximum age
+		}
+		catch (ClosedWatchServiceException e) {
+			// Stopped; fall back on maximum age
+		}
+	}
+
+	/** Start a watch service and a thread to process its events.
+	 * @return Watch service, or null if not available. */
+	static private WatchService startWatcher() {
+		try {
+			final WatchService ws = FileSystems.getDefault()
+				.newWatchService();
+			Thread t = new Thread("DirectoryCache watcher") {
+				public void run() {
+					processEvents(ws);
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			return ws;
+		}
+		catch (IOException e) {
+			return null;
+		}
+		catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/** Process watch service events until it is closed */
+	static private void processEvents(WatchService ws) {
+		try {
+			while (true) {
+				WatchKey key = ws.take();
+				Path dir = (Path)key.watchable();
+				invalidateAll(dir.toFile());
+				for (WatchEvent<?> ev: key.pollEvents())
+					processEvent(dir, ev);
+				if (!key.reset())
+					unwatch(dir);
+			}
+		}
+		catch (InterruptedException e) {
+			// Stop processing
+		}
+		catch (ClosedWatchServiceException e) {
+			// Stop processing
+		}
+	}
+
+	/** Process one watch event.  A changed entry may be a directory
+	 * which was listed before it was watched, so it is also invalidated.
+	 * @param dir Watched directory.
+	 * @param ev Watch event. */
+	static private void processEvent(Path dir, WatchEvent<?> ev) {
+		if (ev.kind() == StandardWatchEventKinds.OVERFLOW)
+			invalidateAll();
+		else if (ev.context() instanceof Path) {
+			Path p = dir.resolve((Path)ev.context());
+			invalidateAll(p.toFile());
+		}
+	}
+
+	/** Forget a directory which is no longer watched */
+	static private synchronized void unwatch(Path dir) {
+		WATCHED.remove(dir);
+	}
+
+	/** Get a snapshot of all directory caches */
+	static private synchronized ArrayList<DirectoryCache> getCaches() {
+		return new ArrayList<DirectoryCache>(CACHES);
+	}
+
+	/** Invalidate one directory in all caches */
+	static private void invalidateAll(File dir) {
+		for (DirectoryCache dc: getCaches())
+			dc.invalidate(dir);
+	}
+
+	/** Invalidate all directories in all caches */
+	static private void invalidateAll() {
+		for (DirectoryCache dc: getCaches())
+			dc.clear();
+	}
+
+	/** Stop watching all directories.  Cached listings will only be
+	 * scanned again after the maximum age. */
+	static public synchronized void stopWatching() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			watcher = null;
+		}
+		WATCHED.clear();
+	}
+
+	/** Filter for directory entries */
+	private final Filter filter;
+
+	/** Cached listings */
+	private final HashMap<File, Listing> listings =
+		new HashMap<File, Listing>();
+
+	/** Generation of cache, incremented on every invalidation */
+	private long generation = 0;
+
+	/** Create a new directory cache.
+	 * @param f Filter for directory entries. */
+	public DirectoryCache(Filter f) {
+		filter = f;
+		synchronized (DirectoryCache.class) {
+			CACHES.add(this);
+		}
+	}
+
+	/** List the filtered entries of a directory.
+	 * @param dir Directory to list.
+	 * @return Iterator of sorted values from filter. */
+	public Iterator<String> list(File dir) throws IOException {
+		long now = System.currentTimeMillis();
+		long gen;
+		synchronized (this) {
+			Listing l = listings.get(dir);
+			boolean hit = l != null && now - l.stamp < MAX_AGE_MS;
+			Metrics.DIRECTORIES.record(hit);
+			if (hit)
+				return l.values.iterator();
+			gen = generation;
+		}
+		// Watch before scanning, so no change is missed
+		watch(dir);
+		SortedSet<String> values = Collections.unmodifiableSortedSet(
+			scan(dir));
+		synchronized (this) {
+			if (gen == generation)
+				listings.put(dir, new Listing(now, values));
+		}
+		return values.iterator();
+	}
+
+	/** Scan a directory */
+	private TreeSet<String> scan(File dir) throws IOException {
+		TreeSet<String> values = new TreeSet<String>();
+		if (dir.canRead() && dir.isDirectory()) {
+			String[] names = dir.list();
+			if (names != null) {
+				for (String n: names) {
+					String v = filter.accept(dir, n);
+					if (v != null)
+						values.add(v);
+				}
+			}
+		}
+		return values;
+	}
+
+	/** Invalidate the listing of one directory */
+	private synchronized void invalidate(File dir) {
+		generation++;
+		listings.remove(dir);
+	}
+
+	/** Invalidate all listings */
+	private synchronized void clear() {
+		generation++;
+		listings.clear();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+/**
+ * Vehicle length classes.  The length of a vehicle is estimated from its
+ * speed and the duration it was over the detector.
+ *
+ * @author Douglas Lau
+ */
+public class LengthClass {
+
+	/** Motorcycle class (.vmc30) */
+	static public final int MOTORCYCLE = 0;
+
+	/** Short class (.vs30) */
+	static public final int SHORT = 1;
+
+	/** Medium class (.vm30) */
+	static public final int MEDIUM = 2;
+
+	/** Long class (.vl30) */
+	static public final int LONG = 3;
+
+	/** Number of length classes */
+	static public final int SIZE = 4;
+
+	/** Default upper length bounds (ft) of motorcycle, short and medium
+	 * classes */
+	static private final int[] DEFAULT_BOUNDS = { 7, 20, 43 };
+
+	/** Upper length bounds (ft) of motorcycle, short and medium classes*/
+	static private volatile int[] bounds = DEFAULT_BOUNDS;
+
+	/** Set the upper length bounds of the length classes.
+	 * @param b Upper bounds (ft) of motorcycle, short and medium classes.
+	 * @throws IllegalArgumentException if bounds are not increasing. */
+	static public void setBounds(int[] b) {
+		if (b.length != SIZE - 1)
+			throw new IllegalArgumentException("Invalid bounds");
+		int prev = 0;
+		for (int v: b) {
+			if (v <= prev)
+				throw new IllegalArgumentException("Invalid bounds");
+			prev = v;
+		}
+		bounds = b.clone();
+	}
+
+	/** Get a string describing the length class bounds (for tagging
+	 * derived data) */
+	static public String getBoundsTag() {
+		int[] b = bounds;
+		StringBuilder sb = new StringBuilder();
+		for (int v: b) {
+			sb.append((sb.length() > 0) ? '-' : 'L');
+			sb.append(v);
+		}
+		return sb.toString();
+	}
+
+	/** Classify a vehicle by length.
+	 * @param d Duration vehicle was over detector (ms).
+	 * @param s Vehicle speed (mph).
+	 * @return Length class, or -1 if duration or speed is missing. */
+	static public int classify(int d, int s) {
+		if (d == VehicleEventReader.MISSING || d < 0 ||
+		    s == VehicleEventReader.MISSING || s <= 0)
+			return -1;
+		// Convert mph to ft/s (5280 / 3600) and ms to s
+		float len = s * 22f / 15 * d / 1000;
+		int[] b = bounds;
+		for (int i = 0; i < b.length; i++) {
+			if (len < b[i])
+				return i;
+		}
+		return LONG;
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+
+/**
+ * Metrics for requests and archive I/O.  All recording is done with
+ * striped counters, so no lock is taken on the request path.  Metrics are
+ * written in Prometheus text exposition format.
+ *
+ * @author Douglas Lau
+ */
+public class Metrics {
+
+	/** Upper bounds (ms) of latency histogram buckets */
+	static private final long[] BUCKETS_MS = {
+		1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000
+	};
+
+	/** Number of nanoseconds per millisecond */
+	static private final long NS_PER_MS = 1000000;
+
+	/** Prefix of all metric names */
+	static private final String PREFIX = "trafdat_";
+
+	/** Request routes (dispatch branches of the servlet) */
+	static public enum Route {
+		docs, districts, dates, sensors, sensor_dates, raw, json,
+		vlog_binned, bulk, range, metrics, invalid;
+
+		/** Latency histogram bucket counts (not cumulative) */
+		private final StripedCounter[] buckets =
+			newCounters(BUCKETS_MS.length + 1);
+
+		/** Total latency (ns) */
+		private final StripedCounter latency_ns = new StripedCounter();
+
+		/** Number of bytes served */
+		private final StripedCounter bytes = new StripedCounter();
+
+		/** Response counts by status class (1xx - 5xx) */
+		private final StripedCounter[] status = newCounters(5);
+
+		/** Record one request.
+		 * @param ns Latency (ns).
+		 * @param b Number of bytes served.
+		 * @param sc HTTP status code. */
+		private void record(long ns, long b, int sc) {
+			buckets[bucket(ns)].increment();
+			latency_ns.add(ns);
+			bytes.add(b);
+			int c = sc / 100 - 1;
+			if (c >= 0 && c < status.length)
+				status[c].increment();
+		}
+	}
+
+	/** Create an array of counters */
+	static private StripedCounter[] newCounters(int n) {
+		StripedCounter[] c = new StripedCounter[n];
+		for (int i = 0; i < n; i++)
+			c[i] = new StripedCounter();
+		return c;
+	}
+
+	/** Get the histogram bucket for a latency.
+	 * @param ns Latency (ns).
+	 * @return Bucket index. */
+	static private int bucket(long ns) {
+		for (int i = 0; i < BUCKETS_MS.length; i++) {
+			if (ns <= BUCKETS_MS[i] * NS_PER_MS)
+				return i;
+		}
+		return BUCKETS_MS.length;
+	}
+
+	/** Hit and miss counters for a cache */
+	static public class CacheStats {
+
+		/** Name of cache */
+		private final String name;
+
+		/** Number of hits */
+		private final StripedCounter hits = new StripedCounter();
+
+		/** Number of misses */
+		private final StripedCounter misses = new StripedCounter();
+
+		/** Create cache statistics */
+		private CacheStats(String n) {
+			name = n;
+		}
+
+		/** Record one cache lookup.
+		 * @param hit true for a hit, false for a miss. */
+		public void record(boolean hit) {
+			if (hit)
+				hits.increment();
+			else
+				misses.increment();
+		}
+	}
+
+	/** Open zip file cache statistics */
+	static public final CacheStats ZIP_FILES = new CacheStats("zip_file");
+
+	/** Sensor index cache statistics */
+	static public final CacheStats SENSOR_INDEX =
+		new CacheStats("sensor_index");
+
+	/** Derived bins cache statistics */
+	static public final CacheStats DERIVED_BINS =
+		new CacheStats("derived_bins");
+
+	/** Vehicle event log index cache statistics */
+	static public final CacheStats VLOG_INDEX =
+		new CacheStats("vlog_index");
+
+	/** Day archive cache statistics */
+	static public final CacheStats DAY_ARCHIVES =
+		new CacheStats("day_archive");
+
+	/** Rollup cache statistics */
+	static public final CacheStats ROLLUPS = new CacheStats("rollup");
+
+	/** Directory listing cache statistics */
+	static public final CacheStats DIRECTORIES =
+		new CacheStats("directory");
+
+	/** All cache statistics */
+	static private final CacheStats[] CACHES = {
+		ZIP_FILES, SENSOR_INDEX, DERIVED_BINS, VLOG_INDEX,
+		DAY_ARCHIVES, ROLLUPS, DIRECTORIES
+	};
+
+	/** Number of zip files opened */
+	static public final StripedCounter ZIP_OPENS = new StripedCounter();
+
+	/** Number of zip entries inflated */
+	static public final StripedCounter ZIP_INFLATED = new StripedCounter();
+
+	/** Number of vehicle event log lines parsed */
+	static public final StripedCounter VLOG_LINES = new StripedCounter();
+
+	/** Number of requests rejected because executors were saturated */
+	static private final StripedCounter REJECTED = new StripedCounter();
+
+	/** State of a request being recorded */
+	static public final class Request {
+		private final long start;
+		private Route route;
+		private long bytes;
+		private boolean vlog_binned;
+		private Request(long st) {
+			start = st;
+		}
+
+		/** End recording the request.
+		 * @param sc HTTP status code of response. */
+		public void end(int sc) {
+			long ns = System.nanoTime() - start;
+			getRoute(this).record(ns, bytes, sc);
+		}
+	}
+
+	/** Request being processed by the current thread */
+	static private final ThreadLocal<Request> REQUEST =
+		new ThreadLocal<Request>();
+
+	/** Begin recording a request on the current thread.
+	 * @param start Time request was received (from System.nanoTime). */
+	static public void begin(long start) {
+		REQUEST.set(new Request(start));
+	}
+
+	/** Set the route of the current request.  The first route set is
+	 * kept, so a branch which delegates to another keeps its own. */
+	static public void setRoute(Route r) {
+		Request q = REQUEST.get();
+		if (q != null && q.route == null)
+			q.route = r;
+	}
+
+	/** Mark the current request as served from a binned vehicle event
+	 * log.  Raw and JSON sample requests are then recorded as
+	 * vlog_binned. */
+	static public void markVLogBinned() {
+		Request q = REQUEST.get();
+		if (q != null)
+			q.vlog_binned = true;
+	}
+
+	/** Add bytes served for the current request */
+	static public void addBytes(long b) {
+		Request q = REQUEST.get();
+		if (q != null)
+			q.bytes += b;
+	}
+
+	/** Detach the request from the current thread, so it can be ended
+	 * on another thread once the response is complete.
+	 * @return Request, or null if none is being recorded. */
+	static public Request detach() {
+		Request q = REQUEST.get();
+		REQUEST.remove();
+		return q;
+	}
+
+	/** End recording the request on the current thread.
+	 * @param sc HTTP status code of response. */
+	static public void end(int sc) {
+		Request q = detach();
+		if (q != null)
+			q.end(sc);
+	}
+
+	/** Get the route to record a request under */
+	static private Route getRoute(Request q) {
+		Route r = (q.route != null) ? q.route : Route.invalid;
+		if (q.vlog_binned && (r == Route.raw || r == Route.json))
+			return Route.vlog_binned;
+		else
+			return r;
+	}
+
+	/** Record a rejected request */
+	static public void rejected() {
+		REJECTED.increment();
+	}
+
+	/** Write all metrics.
+	 * @param w Writer for metrics text. */
+	static public void write(AsciiWriter w) throws IOException {
+		writeLatency(w);
+		writeHeader(w, "response_bytes_total", "counter",
+			"Bytes served by route");
+		for (Route r: Route.values()) {
+			writeSample(w, "response_bytes_total", "route=\"" +
+				r + '"', r.bytes.sum());
+		}
+		writeHeader(w, "responses_total", "counter",
+			"Responses by route and status class");
+		for (Route r: Route.values()) {
+			for (int c = 0; c < r.status.length; c++) {
+				writeSample(w, "responses_total", "route=\"" +
+					r + "\",code=\"" + (c + 1) + "xx\"",
+					r.status[c].sum());
+			}
+		}
+		writeCounter(w, "rejected_total",
+			"Requests rejected with executors saturated", REJECTED);
+		writeCounter(w, "zip_opens_total", "Zip files opened",
+			ZIP_OPENS);
+		writeCounter(w, "zip_entries_inflated_total",
+			"Zip entries inflated", ZIP_INFLATED);
+		writeCounter(w, "vlog_lines_parsed_total",
+			"Vehicle event log lines parsed", VLOG_LINES);
+		writeHeader(w, "cache_requests_total", "counter",
+			"Cache lookups by result");
+		for (CacheStats c: CACHES) {
+			String l = "cache=\"" + c.name + "\",result=";
+			writeSample(w, "cache_requests_total", l + "\"hit\"",
+				c.hits.sum());
+			writeSample(w, "cache_requests_total", l + "\"miss\"",
+				c.misses.sum());
+		}
+	}
+
+	/** Write the request latency histograms */
+	static private void writeLatency(AsciiWriter w) throws IOException {
+		String m = "request_duration_seconds";
+		writeHeader(w, m, "histogram", "Request latency by route");
+		for (Route r: Route.values()) {
+			String l = "route=\"" + r + '"';
+			long n = 0;
+			for (int i = 0; i < r.buckets.length; i++) {
+				n += r.buckets[i].sum();
+				String le = (i < BUCKETS_MS.length)
+				          ? formatSeconds(BUCKETS_MS[i] *
+				                          NS_PER_MS)
+				          : "+Inf";
+				writeSample(w, m + "_bucket", l + ",le=\"" +
+					le + '"', n);
+			}
+			w.write(PREFIX + m + "_sum{" + l + "} " +
+				formatSeconds(r.latency_ns.sum()) + '\n');
+			writeSample(w, m + "_count", l, n);
+		}
+	}
+
+	/** Format a time (ns) as seconds */
+	static private String formatSeconds(long ns) {
+		return Double.toString(ns / 1e9);
+	}
+
+	/** Write a metric header */
+	static private void writeHeader(AsciiWriter w, String m, String t,
+		String h) throws IOException
+	{
+		w.write("# HELP " + PREFIX + m + ' ' + h + '\n');
+		w.write("# TYPE " + PREFIX + m + ' ' + t + '\n');
+	}
+
+	/** Write a counter with no labels */
+	static private void writeCounter(AsciiWriter w, String m, String h,
+		StripedCounter c) throws IOException
+	{
+		writeHeader(w, m, "counter", h);
+		w.write(PREFIX + m + ' ' + c.sum() + '\n');
+	}
+
+	/** Write one labeled sample */
+	static private void writeSample(AsciiWriter w, String m, String l,
+		long v) throws IOException
+	{
+		w.write(PREFIX + m + '{' + l + "} " + v + '\n');
+	}
+}
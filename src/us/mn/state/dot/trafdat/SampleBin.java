@@ -21,9 +21,6 @@ package us.mn.state.dot.trafdat;
  */
 public interface SampleBin {
 
-	/** Number of 30-second samples per day */
-	int SAMPLES_PER_DAY = 2880;
-
 	/** Add one data sample to the bin */
 	void addSample(SampleData sam);
 
@@ -1,6 +1,6 @@
 /*
  * Project: Trafdat
- * Copyright (C) 2007-2010  Minnesota Department of Transportation
+ * Copyright (C) 2007-2014  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -24,6 +24,15 @@ public class SampleData {
 	/** Missing sample data is indicated by negative value */
 	static public final int MISSING_DATA = -1;
 
+	/** Missing vehicle event field */
+	static private final int MISSING = VehicleEventReader.MISSING;
+
+	/** Number of detector scans per second */
+	static private final int SCANS_PER_SECOND = 60;
+
+	/** Maximum number of scans in a sample period */
+	protected final int max_scans;
+
 	/** Was there a reset during this sample period? */
 	protected boolean reset = false;
 
@@ -39,6 +48,24 @@ public class SampleData {
 	/** Count of vehicle speeds for the sample data period */
 	protected int speed_cnt = 0;
 
+	/** Sum of vehicle durations (ms) for the sample data period */
+	protected long duration_sum = 0;
+
+	/** Count of vehicles with missing duration */
+	protected int duration_missing = 0;
+
+	/** Count of vehicles in each length class */
+	protected final int[] class_cnt = new int[LengthClass.SIZE];
+
+	/** Count of vehicles which could not be classified */
+	protected int class_missing = 0;
+
+	/** Create new sample data.
+	 * @param p Sample period (seconds). */
+	public SampleData(int p) {
+		max_scans = p * SCANS_PER_SECOND;
+	}
+
 	/** Get the sample period number */
 	public int getPeriod() {
 		return period;
@@ -46,7 +73,7 @@ public class SampleData {
 
 	/** Get the binned volume for the sample period */
 	public int getVolume() {
-		if(volume < 128 && !reset)
+		if(!reset)
 			return volume;
 		else
 			return MISSING_DATA;
@@ -54,22 +81,49 @@ public class SampleData {
 
 	/** Get the binned speed for the sample period */
 	public int getSpeed() {
-		if(speed_cnt > 0 && !reset) {
-			int speed = Math.round(speed_sum / speed_cnt);
-			if(speed < 128)
-				return speed;
+		if(speed_cnt > 0 && !reset)
+			return Math.round(speed_sum / speed_cnt);
+		else
+			return MISSING_DATA;
+	}
+
+	/** Get the binned scans (occupancy) for the sample period */
+	public int getScans() {
+		if(duration_missing == 0 && !reset) {
+			long scans = Math.round(duration_sum *
+				SCANS_PER_SECOND / 1000.0);
+			return (int)Math.min(scans, max_scans);
 		}
 		return MISSING_DATA;
 	}
 
-	/** Add one vehicle event to the sample period */
-	public void addEvent(VehicleEvent ev) {
+	/** Get the binned vehicle count for a length class.
+	 * @param lc Length class (LengthClass.MOTORCYCLE, etc.). */
+	public int getClassCount(int lc) {
+		if(class_missing == 0 && !reset)
+			return class_cnt[lc];
+		else
+			return MISSING_DATA;
+	}
+
+	/** Add one vehicle event to the sample period.
+	 * @param d Duration (ms), or VehicleEventReader.MISSING.
+	 * @param s Vehicle speed (mph), or VehicleEventReader.MISSING. */
+	public void addEvent(int d, int s) {
 		volume += 1;
-		Integer s = ev.getSpeed();
-		if(s != null) {
+		if(s != MISSING) {
 			speed_sum += s;
 			speed_cnt += 1;
 		}
+		if(d != MISSING && d >= 0)
+			duration_sum += d;
+		else
+			duration_missing += 1;
+		int lc = LengthClass.classify(d, s);
+		if(lc >= 0)
+			class_cnt[lc] += 1;
+		else
+			class_missing += 1;
 	}
 
 	/** Set the reset flag */
@@ -89,5 +143,10 @@ public class SampleData {
 		volume = 0;
 		speed_sum = 0;
 		speed_cnt = 0;
+		duration_sum = 0;
+		duration_missing = 0;
+		for(int i = 0; i < class_cnt.length; i++)
+			class_cnt[i] = 0;
+		class_missing = 0;
 	}
 }
@@ -0,0 +1,178 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Format of a binned sample file.  A whole sample file is read into a
+ * buffer at once, then decoded in a single loop.  Samples are stored
+ * big-endian, and any negative value indicates missing data.
+ *
+ * @author Douglas Lau
+ */
+public class SampleFormat {
+
+	/** Missing sample data is indicated by negative value */
+	static private final int MISSING_DATA = SampleData.MISSING_DATA;
+
+	/** Number of seconds per day */
+	static public final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	/** Table of binned sample file formats */
+	static private final SampleFormat[] FORMATS = {
+		new SampleFormat(".v30", 1, 30),
+		new SampleFormat(".c30", 2, 30),
+		new SampleFormat(".s30", 1, 30),
+		new SampleFormat(".vmc30", 1, 30),
+		new SampleFormat(".vs30", 1, 30),
+		new SampleFormat(".vm30", 1, 30),
+		new SampleFormat(".vl30", 1, 30),
+		new SampleFormat(".pr60", 2, 60),
+		new SampleFormat(".pt60", 1, 60),
+	};
+
+	/** Lookup the format of a binned sample file.
+	 * @param name Name of sample file.
+	 * @return Sample format, or null if not a binned sample file. */
+	static public SampleFormat lookup(String name) {
+		for (SampleFormat f: FORMATS) {
+			if (name.endsWith(f.ext))
+				return f;
+		}
+		int period = DerivedBins.derivedPeriod(name);
+		if (period > 0) {
+			String ext = name.substring(name.lastIndexOf('.'));
+			int w = DerivedBins.sampleWidth(name);
+			return new SampleFormat(ext, w, period);
+		}
+		return null;
+	}
+
+	/** Sample file extension */
+	private final String ext;
+
+	/** Width of each sample (bytes) */
+	private final int width;
+
+	/** Sample period (seconds) */
+	private final int period;
+
+	/** Create a new sample format */
+	private SampleFormat(String e, int w, int p) {
+		ext = e;
+		width = w;
+		period = p;
+	}
+
+	/** Get the sample file extension */
+	public String getExt() {
+		return ext;
+	}
+
+	/** Get the width of each sample (bytes) */
+	public int getWidth() {
+		return width;
+	}
+
+	/** Get the sample period (seconds) */
+	public int getPeriod() {
+		return period;
+	}
+
+	/** Get the number of samples per day */
+	public int samplesPerDay() {
+		return SECONDS_PER_DAY / period;
+	}
+
+	/** Read a whole sample file into a buffer.
+	 * @param in Input stream to read.
+	 * @return Buffer containing the sample file. */
+	public ByteBuffer read(InputStream in) throws IOException {
+		byte[] buf = new byte[samplesPerDay() * width];
+		int n = 0;
+		while (true) {
+			if (n == buf.length)
+				buf = Arrays.copyOf(buf, n * 2);
+			int r = in.read(buf, n, buf.length - n);
+			if (r < 0)
+				break;
+			n += r;
+		}
+		return ByteBuffer.wrap(buf, 0, n);
+	}
+
+	/** Decode samples from a buffer.  A trailing partial sample is
+	 * ignored.
+	 * @param buf Buffer containing sample file.
+	 * @return Array of samples (MISSING_DATA for missing samples). */
+	public int[] decode(ByteBuffer buf) {
+		return (width == 2) ? decodeShorts(buf) : decodeBytes(buf);
+	}
+
+	/** Encode samples in this format.
+	 * @param samples Array of samples (negative for missing).
+	 * @return Encoded sample data. */
+	public byte[] encode(int[] samples) {
+		ByteBuffer buf = ByteBuffer.allocate(samples.length * width);
+		for (int s: samples) {
+			if (width == 2)
+				buf.putShort((short)Math.max(s, MISSING_DATA));
+			else
+				buf.put((byte)Math.max(s, MISSING_DATA));
+		}
+		return buf.array();
+	}
+
+	/** Decode byte samples from a buffer */
+	private int[] decodeBytes(ByteBuffer buf) {
+		if (!buf.hasArray())
+			return decodeDirectBytes(buf);
+		byte[] data = buf.array();
+		int off = buf.arrayOffset() + buf.position();
+		int[] samples = new int[buf.remaining()];
+		for (int i = 0; i < samples.length; i++) {
+			int s = data[off + i];
+			samples[i] = (s >= 0) ? s : MISSING_DATA;
+		}
+		return samples;
+	}
+
+	/** Decode byte samples from a direct (or mapped) buffer */
+	private int[] decodeDirectBytes(ByteBuffer buf) {
+		int off = buf.position();
+		int[] samples = new int[buf.remaining()];
+		for (int i = 0; i < samples.length; i++) {
+			int s = buf.get(off + i);
+			samples[i] = (s >= 0) ? s : MISSING_DATA;
+		}
+		return samples;
+	}
+
+	/** Decode big-endian short samples from a buffer */
+	private int[] decodeShorts(ByteBuffer buf) {
+		ShortBuffer sb = buf.asShortBuffer();
+		int[] samples = new int[sb.remaining()];
+		for (int i = 0; i < samples.length; i++) {
+			int s = sb.get(i);
+			samples[i] = (s >= 0) ? s : MISSING_DATA;
+		}
+		return samples;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sample data for one sensor over a range of dates.  Each date is read by a
+ * task on an executor, with a bounded number of dates read ahead.  Results
+ * are returned in date order.
+ *
+ * @author Douglas Lau
+ */
+public class SampleRange {
+
+	/** Parse a date string into a calendar.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Calendar set to the date. */
+	static private Calendar parseDate(String date) {
+		int y = Integer.parseInt(date.substring(0, 4));
+		int m = Integer.parseInt(date.substring(4, 6));
+		int d = Integer.parseInt(date.substring(6, 8));
+		GregorianCalendar cal = new GregorianCalendar(y, m - 1, d);
+		cal.setLenient(false);
+		return cal;
+	}
+
+	/** Format a calendar as a date string (yyyyMMdd) */
+	static private String formatDate(Calendar cal) {
+		int y = cal.get(Calendar.YEAR);
+		int m = cal.get(Calendar.MONTH) + 1;
+		int d = cal.get(Calendar.DAY_OF_MONTH);
+		return String.valueOf(y * 10000 + m * 100 + d);
+	}
+
+	/** Create a list of dates in a range.
+	 * @param from First date (8 digits yyyyMMdd).
+	 * @param to Last date (8 digits yyyyMMdd).
+	 * @param max Maximum number of dates.
+	 * @return List of dates, or null if the range is not valid. */
+	static public ArrayList<String> dates(String from, String to, int max)
+	{
+		if (!SensorArchive.isValidDate(from) ||
+		    !SensorArchive.isValidDate(to) ||
+		    from.compareTo(to) > 0)
+			return null;
+		ArrayList<String> dates = new ArrayList<String>();
+		try {
+			Calendar cal = parseDate(from);
+			String date = formatDate(cal);
+			if (!date.equals(from))
+				return null;
+			while (date.compareTo(to) <= 0) {
+				if (dates.size() >= max)
+					return null;
+				dates.add(date);
+				cal.add(Calendar.DATE, 1);
+				date = formatDate(cal);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+		return dates;
+	}
+
+	/** Executor to read dates */
+	private final ExecutorService executor;
+
+	/** Sensor archive */
+	private final SensorArchive archive;
+
+	/** Sample file name */
+	private final String name;
+
+	/** Rollup period (seconds), or 0 for no rollup */
+	private final int period;
+
+	/** Dates remaining to be submitted */
+	private final Iterator<String> dates;
+
+	/** Maximum number of dates to read ahead */
+	private final int window;
+
+	/** Dates submitted, but not yet returned */
+	private final LinkedList<String> pending = new LinkedList<String>();
+
+	/** Tasks submitted, but not yet returned */
+	private final LinkedList<Future<int[]>> tasks =
+		new LinkedList<Future<int[]>>();
+
+	/** Create a new sample range.
+	 * @param ex Executor to read dates.
+	 * @param sa Sensor archive.
+	 * @param n Sample file name.
+	 * @param p Rollup period (seconds), or 0 for no rollup.
+	 * @param d List of dates.
+	 * @param w Maximum number of dates to read ahead. */
+	public SampleRange(ExecutorService ex, SensorArchive sa, String n,
+		int p, ArrayList<String> d, int w)
+	{
+		executor = ex;
+		archive = sa;
+		name = n;
+		period = p;
+		dates = d.iterator();
+		window = w;
+		fill();
+	}
+
+	/** Submit tasks up to the read-ahead window */
+	private void fill() {
+		while (tasks.size() < window && dates.hasNext()) {
+			final String date = dates.next();
+			pending.add(date);
+			tasks.add(executor.submit(new Callable<int[]>() {
+				public int[] call() throws IOException {
+					return readSamples(date);
+				}
+			}));
+		}
+	}
+
+	/** Read the samples for one date.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Array of samples, or null if missing. */
+	private int[] readSamples(String date) throws IOException {
+		try {
+			return archive.sampleArray(date, name, period);
+		}
+		catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/** Check if there are more dates */
+	public boolean hasNext() {
+		return !pending.isEmpty();
+	}
+
+	/** Get the next date */
+	public String nextDate() {
+		return pending.getFirst();
+	}
+
+	/** Get the samples for the next date, waiting for them to be read.
+	 * @return Array of samples, or null if missing. */
+	public int[] next() throws IOException {
+		pending.removeFirst();
+		Future<int[]> task = tasks.removeFirst();
+		fill();
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			cancel();
+			throw new IOException("Interrupted");
+		}
+		catch (ExecutionException e) {
+			cancel();
+			Throwable c = e.getCause();
+			if (c instanceof IOException)
+				throw (IOException)c;
+			throw new IOException(c.toString());
+		}
+	}
+
+	/** Cancel all remaining tasks */
+	public void cancel() {
+		for (Future<int[]> task: tasks)
+			task.cancel(false);
+		tasks.clear();
+		pending.clear();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+/**
+ * Roll up binned sample data into longer periods.  Counts (volume, scans)
+ * are summed, and speeds are averaged, weighted by volume.  A rolled-up
+ * period is missing unless enough of its samples are valid; missing
+ * samples are left out of sums, never estimated.
+ *
+ * @author Douglas Lau
+ */
+public class SampleRollup {
+
+	/** Missing sample data is indicated by negative value */
+	static private final int MISSING_DATA = SampleData.MISSING_DATA;
+
+	/** Check if a rollup period is valid for a sample period.
+	 * @param period Rollup period (seconds).
+	 * @param s_period Sample period (seconds).
+	 * @return true if period is a multiple of the sample period which
+	 *         divides evenly into a day. */
+	static public boolean isValidPeriod(int period, int s_period) {
+		return period > 0
+		    && s_period > 0
+		    && period % s_period == 0
+		    && SampleFormat.SECONDS_PER_DAY % period == 0;
+	}
+
+	/** Number of samples in each rolled-up period */
+	private final int n_samples;
+
+	/** Minimum number of valid samples for a rolled-up period */
+	private final int min_valid;
+
+	/** Create a new sample rollup.
+	 * @param period Rollup period (seconds).
+	 * @param s_period Sample period (seconds).
+	 * @param mv Minimum fraction of valid samples (0 - 1). */
+	public SampleRollup(int period, int s_period, float mv) {
+		assert isValidPeriod(period, s_period);
+		n_samples = period / s_period;
+		min_valid = Math.max(1, (int)Math.ceil(mv * n_samples));
+	}
+
+	/** Get the number of rolled-up periods for a sample array */
+	private int rolledLength(int[] samples) {
+		return (samples.length + n_samples - 1) / n_samples;
+	}
+
+	/** Roll up count samples by summing the valid samples.
+	 * @param samples Sample data.
+	 * @return Rolled-up sample data. */
+	public int[] sum(int[] samples) {
+		int[] rolled = new int[rolledLength(samples)];
+		for (int r = 0; r < rolled.length; r++) {
+			int total = 0;
+			int n_valid = 0;
+			int end = Math.min((r + 1) * n_samples, samples.length);
+			for (int i = r * n_samples; i < end; i++) {
+				if (samples[i] >= 0) {
+					total += samples[i];
+					n_valid++;
+				}
+			}
+			rolled[r] = (n_valid >= min_valid)
+			          ? total
+			          : MISSING_DATA;
+		}
+		return rolled;
+	}
+
+	/** Roll up speed samples, weighted by volume.
+	 * @param speeds Speed sample data.
+	 * @param volumes Volume sample data (or null if not available).
+	 * @return Rolled-up speed data. */
+	public int[] weightedAverage(int[] speeds, int[] volumes) {
+		if (volumes == null || volumes.length != speeds.length)
+			return average(speeds);
+		int[] rolled = new int[rolledLength(speeds)];
+		for (int r = 0; r < rolled.length; r++) {
+			long total = 0;
+			int weight = 0;
+			int n_valid = 0;
+			int end = Math.min((r + 1) * n_samples, speeds.length);
+			for (int i = r * n_samples; i < end; i++) {
+				int v = volumes[i];
+				if (v >= 0) {
+					n_valid++;
+					if (v > 0 && speeds[i] >= 0) {
+						total += speeds[i] * v;
+						weight += v;
+					}
+				}
+			}
+			rolled[r] = (n_valid >= min_valid && weight > 0)
+			          ? Math.round(total / (float)weight)
+			          : MISSING_DATA;
+		}
+		return rolled;
+	}
+
+	/** Roll up samples by averaging them (unweighted).
+	 * @param samples Sample data.
+	 * @return Rolled-up sample data. */
+	private int[] average(int[] samples) {
+		int[] rolled = new int[rolledLength(samples)];
+		for (int r = 0; r < rolled.length; r++) {
+			int total = 0;
+			int n_valid = 0;
+			int end = Math.min((r + 1) * n_samples, samples.length);
+			for (int i = r * n_samples; i < end; i++) {
+				if (samples[i] >= 0) {
+					total += samples[i];
+					n_valid++;
+				}
+			}
+			rolled[r] = (n_valid >= min_valid)
+			          ? Math.round(total / (float)n_valid)
+			          : MISSING_DATA;
+		}
+		return rolled;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+/**
+ * Bin for storing scan (occupancy) sample data
+ *
+ * @author Douglas Lau
+ */
+public class ScanSampleBin extends AbstractSampleBin {
+
+	/** Create a new scan sample bin.
+	 * @param n_samples Number of samples per day.
+	 * @param w Width of each sample (1 or 2 bytes). */
+	public ScanSampleBin(int n_samples, int w) {
+		super(n_samples, w);
+	}
+
+	/** Get the value to bin from a data sample */
+	protected int getValue(SampleData sam) {
+		return sam.getScans();
+	}
+}
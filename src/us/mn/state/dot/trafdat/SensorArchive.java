@@ -14,24 +14,24 @@
  */
 package us.mn.state.dot.trafdat;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 /**
  * Sensor data archive.
@@ -40,8 +40,20 @@ import java.util.zip.ZipFile;
  */
 public class SensorArchive {
 
-	/** Path to directory containing traffic data files */
-	static private final String BASE_PATH = "/var/lib/iris/traffic";
+	/** Default path to directory containing traffic data files */
+	static private final String DEFAULT_BASE_PATH = "/var/lib/iris/traffic";
+
+	/** Default path to directory containing sensor index files */
+	static private final String DEFAULT_INDEX_PATH = "/var/cache/trafdat";
+
+	/** Sensor index file extension */
+	static private final String INDEX_EXT = ".idx";
+
+	/** Derived bin file extension */
+	static private final String BINS_EXT = ".bins";
+
+	/** Vehicle event log index file extension */
+	static private final String VIDX_EXT = ".vidx";
 
 	/** Name of trafdat documentation file */
 	static private final String DOC_FILE = "index.html";
@@ -49,6 +61,157 @@ public class SensorArchive {
 	/** Traffic file extension */
 	static private final String EXT = ".traffic";
 
+	/** Vehicle event log file extension */
+	static private final String VLOG_EXT = ".vlog";
+
+	/** Maximum number of mapped .traffic files */
+	static private final int MAX_OPEN_TRAFFIC = 32;
+
+	/** Maximum idle time (ms) before evicting a mapped .traffic file */
+	static private final long MAX_IDLE_MS = 5 * 60 * 1000;
+
+	/** Cache of mapped .traffic files */
+	static private final ZipFileCache ZIP_CACHE =
+		new ZipFileCache(MAX_OPEN_TRAFFIC, MAX_IDLE_MS);
+
+	/** Maximum number of rolled-up sample arrays to cache */
+	static private final int MAX_ROLLUPS = 4096;
+
+	/** Rolled-up sample data, with tag of source data */
+	static private class Rollup {
+		private final String tag;
+		private final int[] samples;
+		private Rollup(String t, int[] s) {
+			tag = t;
+			samples = s;
+		}
+	}
+
+	/** Cache of rolled-up sample data */
+	static private final LinkedHashMap<String, Rollup> ROLLUPS =
+		new LinkedHashMap<String, Rollup>(16, 0.75f, true)
+	{
+		protected boolean removeEldestEntry(
+			Map.Entry<String, Rollup> e)
+		{
+			return size() > MAX_ROLLUPS;
+		}
+	};
+
+	/** Coalesced reads of binned sample files */
+	static private final SingleFlight<byte[]> SAMPLE_FLIGHTS =
+		new SingleFlight<byte[]>();
+
+	/** Coalesced binning of .vlog files */
+	static private final SingleFlight<DerivedBins> BIN_FLIGHTS =
+		new SingleFlight<DerivedBins>();
+
+	/** Coalesced indexing of .vlog files */
+	static private final SingleFlight<VLogIndex> INDEX_FLIGHTS =
+		new SingleFlight<VLogIndex>();
+
+	/** Coalesced rollups of sample data */
+	static private final SingleFlight<int[]> ROLLUP_FLIGHTS =
+		new SingleFlight<int[]>();
+
+	/** Default minimum fraction of valid samples for rolled-up data */
+	static private final float DEFAULT_MIN_VALID = 0.8f;
+
+	/** Minimum fraction of valid samples for rolled-up data */
+	static private float rollup_min_valid = DEFAULT_MIN_VALID;
+
+	/** Set the minimum fraction of valid samples for rolled-up data.
+	 * @param mv Minimum fraction of valid samples (0 - 1). */
+	static public synchronized void setRollupMinValid(float mv) {
+		rollup_min_valid = Math.max(0, Math.min(mv, 1));
+	}
+
+	/** Get the minimum fraction of valid samples for rolled-up data */
+	static public synchronized float getRollupMinValid() {
+		return rollup_min_valid;
+	}
+
+	/** Path to directory containing traffic data files */
+	static private String base_path = DEFAULT_BASE_PATH;
+
+	/** Path to directory containing sensor index files */
+	static private String index_base_path = DEFAULT_INDEX_PATH;
+
+	/** Set the path to the directory containing traffic data files.
+	 * @param bp Base path of archive. */
+	static public synchronized void setBasePath(String bp) {
+		base_path = bp;
+	}
+
+	/** Get the path to the directory containing traffic data files */
+	static public synchronized String getBasePath() {
+		return base_path;
+	}
+
+	/** Set the path to the directory containing sensor index files.
+	 * @param ip Base path of index files. */
+	static public synchronized void setIndexBasePath(String ip) {
+		index_base_path = ip;
+	}
+
+	/** Get the path to the directory containing sensor index files */
+	static public synchronized String getIndexBasePath() {
+		return index_base_path;
+	}
+
+	/** Get a cached rollup */
+	static private synchronized Rollup getRollup(String key) {
+		return ROLLUPS.get(key);
+	}
+
+	/** Put a rollup into the cache */
+	static private synchronized void putRollup(String key, Rollup r) {
+		ROLLUPS.put(key, r);
+	}
+
+	/** Evict all mapped .traffic files from the cache */
+	static public void evictTrafficFiles() {
+		ZIP_CACHE.clear();
+	}
+
+	/** Cache of district directory listings */
+	static private final DirectoryCache DISTRICTS = new DirectoryCache(
+		new DirectoryCache.Filter()
+	{
+		public String accept(File dir, String name) throws IOException {
+			File d = new File(dir, name);
+			boolean valid = d.canRead() && d.isDirectory() &&
+				isCanonical(d);
+			return valid ? name : null;
+		}
+	});
+
+	/** Cache of year directory listings */
+	static private final DirectoryCache YEARS = new DirectoryCache(
+		new DirectoryCache.Filter()
+	{
+		public String accept(File dir, String name) {
+			File y = new File(dir, name);
+			boolean valid = isValidYear(name) && y.canRead() &&
+				y.isDirectory();
+			return valid ? name : null;
+		}
+	});
+
+	/** Cache of date listings */
+	static private final DirectoryCache DATES = new DirectoryCache(
+		new DirectoryCache.Filter()
+	{
+		public String accept(File dir, String name) {
+			return isDateReadable(dir, name) ? parseDate(name) : null;
+		}
+	});
+
+	/** Stop watching the archive for changes */
+	static public void stopWatching() {
+		DirectoryCache.stopWatching();
+	}
+
 	/** Check if a file name is canonical */
 	static private boolean isCanonical(File f) throws IOException {
 		return f.getPath().equals(f.getCanonicalPath());
@@ -61,7 +224,14 @@ public class SensorArchive {
 	static private boolean isDateReadable(File path, String name) {
 		File file = new File(path, name);
 		return file.canRead() &&
-		      (isTrafficFile(name) || isDateDirectory(file, name));
+		      (isTrafficFile(name) || isDayFile(name) ||
+		       isDateDirectory(file, name));
+	}
+
+	/** Check if a name is a valid day archive file */
+	static private boolean isDayFile(String name) {
+		return (name.length() == 8 + DayArchive.EXT.length()) &&
+		       name.endsWith(DayArchive.EXT);
 	}
 
 	/** Check if a name is a valid .traffic file */
@@ -135,7 +305,8 @@ public class SensorArchive {
 	static public boolean isBinnedFile(String name) {
 		return isBinnedTraffic(name)
 		    || isClassification(name)
-		    || isBinnedPrecipitation(name);
+		    || isBinnedPrecipitation(name)
+		    || DerivedBins.isDerived(name);
 	}
 
 	/** Check if the given file name is a binned traffic file.
@@ -165,16 +336,21 @@ public class SensorArchive {
 		    || name.endsWith(".pt60");
 	}
 
-	/** Create a sample bin for the given file name.
-	 * @param name Name of sample file.
-	 * @return Sample bin for specified file. */
-	static private SampleBin createSampleBin(String name) {
-		if (name.endsWith(".v30"))
-			return new VolumeSampleBin();
-		else if (name.endsWith(".s30"))
-			return new SpeedSampleBin();
-		else
-			return null;
+	/** Get the sample period of a binned sample file.
+	 * @param name Name of binned sample file.
+	 * @return Sample period (seconds). */
+	static public int samplePeriod(String name) {
+		int i = name.length();
+		while (i > 0 && Character.isDigit(name.charAt(i - 1)))
+			i--;
+		return Integer.parseInt(name.substring(i));
+	}
+
+	/** Get the number of samples per day in a binned sample file.
+	 * @param name Name of binned sample file.
+	 * @return Number of samples per day. */
+	static public int samplesPerDay(String name) {
+		return SampleFormat.SECONDS_PER_DAY / samplePeriod(name);
 	}
 
 	/** Get the sensor ID for a given file name.
@@ -185,45 +361,129 @@ public class SensorArchive {
 		return (i > 0) ? name.substring(0, i) : name;
 	}
 
-	/** Format a number as a string value.
-	 * @param val Number to format.
-	 * @return String value. */
-	static private String formatInt(int val) {
-		return (val >= 0) ? Integer.toString(val) : null;
-	}
+	/** Size of gzip header */
+	static private final int GZIP_HEADER_LEN = 10;
 
-	/** Get a sample reader for the specified sample file name.
-	 * @param name Name of sample file.
-	 * @return SampleReader to read samples from the file. */
-	static private SampleReader sampleReader(String name) {
-		if (name.endsWith(".c30") || name.endsWith(".pr60"))
-			return new ShortSampleReader();
-		else
-			return new ByteSampleReader();
+	/** Size of gzip trailer */
+	static private final int GZIP_TRAILER_LEN = 8;
+
+	/** Frame deflated zip entry data as a gzip stream.
+	 * @param data Deflated data of entry.
+	 * @param crc CRC-32 of uncompressed data.
+	 * @param size Uncompressed size of entry.
+	 * @return InputStream of gzip data. */
+	static private InputStream gzipFrame(ByteBuffer data, long crc,
+		long size)
+	{
+		int len = data.remaining();
+		byte[] gz = new byte[GZIP_HEADER_LEN + len + GZIP_TRAILER_LEN];
+		gz[0] = (byte)0x1f;	// ID1
+		gz[1] = (byte)0x8b;	// ID2
+		gz[2] = 8;		// CM: deflate
+		gz[9] = (byte)0xff;	// OS: unknown
+		data.get(gz, GZIP_HEADER_LEN, len);
+		int t = GZIP_HEADER_LEN + len;
+		putInt32(gz, t, crc);
+		putInt32(gz, t + 4, size);
+		return new ByteArrayInputStream(gz);
 	}
 
-	/** Interface for sample data readers */
-	static private interface SampleReader {
-		int getSample(DataInputStream dis) throws IOException;
+	/** Put a little-endian 32-bit value into a buffer */
+	static private void putInt32(byte[] b, int off, long v) {
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >> 8);
+		b[off + 2] = (byte)(v >> 16);
+		b[off + 3] = (byte)(v >> 24);
 	}
 
-	/** Class to read byte samples from a data input stream */
-	static private class ByteSampleReader implements SampleReader {
-		public int getSample(DataInputStream dis) throws IOException {
-			return dis.readByte();
+	/** Input stream limited to a range of another stream */
+	static private class RangeInputStream extends FilterInputStream {
+
+		/** Number of bytes remaining in range */
+		private long remaining;
+
+		/** Create a new range input stream.
+		 * @param in Input stream, positioned at start of range.
+		 * @param len Length of range. */
+		private RangeInputStream(InputStream in, long len) {
+			super(in);
+			remaining = len;
+		}
+
+		/** Read one byte */
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		/** Read into a byte array */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = super.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		/** Skip bytes */
+		@Override
+		public long skip(long n) throws IOException {
+			long s = super.skip(Math.min(n, remaining));
+			remaining -= s;
+			return s;
+		}
+
+		/** Get the number of bytes available */
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), remaining);
+		}
+
+		/** Mark is not supported */
+		@Override
+		public boolean markSupported() {
+			return false;
 		}
 	}
 
-	/** Class to read short samples from a data input stream */
-	static private class ShortSampleReader implements SampleReader {
-		public int getSample(DataInputStream dis) throws IOException {
-			return dis.readShort();
+	/** Skip a number of bytes in an input stream.
+	 * @param in Input stream.
+	 * @param n Number of bytes to skip.
+	 * @throws EOFException if the end of stream is reached first. */
+	static private void skipFully(InputStream in, long n)
+		throws IOException
+	{
+		while (n > 0) {
+			long s = in.skip(n);
+			if (s <= 0) {
+				if (in.read() < 0)
+					throw new EOFException();
+				s = 1;
+			}
+			n -= s;
 		}
 	}
 
+	/** Check if the given file name can be rolled up into longer periods.
+	 * @param name Name of sample file.
+	 * @return true if sample file can be rolled up. */
+	static public boolean isRollupFile(String name) {
+		return isBinnedTraffic(name);
+	}
+
 	/** Data path for district */
 	private final File dist_path;
 
+	/** Index path for district */
+	private final File index_path;
+
 	/** Build a file path to the given archive location.
 	 * @param path District archive relative path to file.
 	 * @return Path to directory in sample archive. */
@@ -249,21 +509,72 @@ public class SensorArchive {
 		return new File(buildPath(year), date + EXT);
 	}
 
+	/** Get the file path to the given date day archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Path to file in sample archive. */
+	private File getDayPath(String date) {
+		assert date.length() == 8;
+		String year = date.substring(0, 4);
+		return new File(buildPath(year), date + DayArchive.EXT);
+	}
+
+	/** Get the file path to the given date sensor index.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Path to sensor index file. */
+	private File getIndexPath(String date) {
+		assert date.length() == 8;
+		String year = date.substring(0, 4);
+		return new File(new File(index_path, year), date + INDEX_EXT);
+	}
+
+	/** Get the file path to the derived bins for a sensor.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @param period Sample period (seconds).
+	 * @return Path to derived bin file. */
+	private File getBinsPath(String date, String sid, int period) {
+		assert date.length() == 8;
+		String year = date.substring(0, 4);
+		File dir = new File(new File(index_path, year), date);
+		return new File(dir, sid + '.' + period + BINS_EXT);
+	}
+
+	/** Get the file path to the time index of a vehicle event log.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @return Path to vehicle event log index file. */
+	private File getVLogIndexPath(String date, String sid) {
+		assert date.length() == 8;
+		String year = date.substring(0, 4);
+		File dir = new File(new File(index_path, year), date);
+		return new File(dir, sid + VIDX_EXT);
+	}
+
 	/** Get an InputStream for the documenataion.
 	 * @return InputStream from which sample data can be read. */
 	static public InputStream docInputStream() throws IOException {
-		return new FileInputStream(new File(BASE_PATH, DOC_FILE));
+		return new FileInputStream(new File(getBasePath(), DOC_FILE));
 	}
 
 	/** Sensor data archive.
 	 * @param d District ID. */
 	public SensorArchive(String d) {
-		dist_path = new File(BASE_PATH, d);
+		dist_path = new File(getBasePath(), d);
+		index_path = new File(getIndexBasePath(), d);
 	}
 
 	/** Sensor data archive */
 	public SensorArchive() {
-		dist_path = new File(BASE_PATH);
+		dist_path = new File(getBasePath());
+		index_path = new File(getIndexBasePath());
+	}
+
+	/** Sensor data archive at another location.
+	 * @param dp District data path.
+	 * @param ip District index path. */
+	SensorArchive(File dp, File ip) {
+		dist_path = dp;
+		index_path = ip;
 	}
 
 	/** Check if district is valid */
@@ -274,13 +585,13 @@ public class SensorArchive {
 	/** Lookup the available districts.
 	 * @return Iterator of available districts. */
 	public Iterator<String> lookupDistricts() throws IOException {
-		TreeSet<String> dists = new TreeSet<String>();
-		for (String n: dist_path.list()) {
-			File d = buildPath(n);
-			if (d.canRead() && d.isDirectory() && isCanonical(d))
-				dists.add(n);
-		}
-		return dists.iterator();
+		return DISTRICTS.list(dist_path);
+	}
+
+	/** Lookup the years available.
+	 * @return Iterator of years available (4 digits). */
+	public Iterator<String> lookupYears() throws IOException {
+		return YEARS.list(dist_path);
 	}
 
 	/** Lookup the dates available for a given year.
@@ -288,18 +599,7 @@ public class SensorArchive {
 	 * @return Iterator of dates available (8 digits yyyyMMdd). */
 	public Iterator<String> lookupDates(String year) throws IOException {
 		assert year.length() == 4;
-		TreeSet<String> dates = new TreeSet<String>();
-		File dir = buildPath(year);
-		if (dir.canRead() && dir.isDirectory()) {
-			for (String name: dir.list()) {
-				if (isDateReadable(dir, name)) {
-					String date = parseDate(name);
-					if (date != null)
-						dates.add(date);
-				}
-			}
-		}
-		return dates.iterator();
+		return DATES.list(buildPath(year));
 	}
 
 	/** Lookup the sensors available for the given date.
@@ -308,9 +608,12 @@ public class SensorArchive {
 	public Iterator<String> lookup(String date) throws IOException {
 		assert date.length() == 8;
 		TreeSet<String> sensors = new TreeSet<String>();
-		File traffic = getTrafficPath(date);
-		if (traffic.canRead() && traffic.isFile())
-			lookup(traffic, sensors);
+		DayArchive da = lookupDayArchive(date);
+		if (da != null)
+			da.addSensors(sensors);
+		SensorIndex idx = lookupIndex(date);
+		if (idx != null)
+			idx.addSensors(sensors);
 		File dir = getDatePath(date);
 		if (dir.canRead() && dir.isDirectory()) {
 			for (String name: dir.list()) {
@@ -321,34 +624,127 @@ public class SensorArchive {
 		return sensors.iterator();
 	}
 
-	/** Lookup all the sensors in a .traffic file.
-	 * @param traffic Traffic file to lookup.
-	 * @param sensors Sensor set.
-	 * @throws IOException On file I/O error. */
-	private void lookup(File traffic, TreeSet<String> sensors)
+	/** Get the last modified time of the data for a date.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Last modified time of the .traffic file, day archive or
+	 *         date directory, whichever is latest. */
+	public long dateModified(String date) {
+		assert date.length() == 8;
+		long mt = Math.max(getTrafficPath(date).lastModified(),
+			getDayPath(date).lastModified());
+		return Math.max(mt, getDatePath(date).lastModified());
+	}
+
+	/** Update the sensor date index of the district.  Only dates which
+	 * are new or modified since the last update are scanned.  This should
+	 * only be called from a background task. */
+	public void updateSensorDates() throws IOException {
+		SensorDates.forDistrict(dist_path.getPath()).update(this);
+	}
+
+	/** Lookup the dates a sensor has data, as of the last update of the
+	 * sensor date index.
+	 * @param sid Sensor ID.
+	 * @return Iterator of dates (8 digits yyyyMMdd), or null if the index
+	 *         has not been built yet. */
+	public Iterator<String> lookupSensorDates(String sid) {
+		return SensorDates.forDistrict(dist_path.getPath()).lookup(sid);
+	}
+
+	/** Lookup the day archive for a date.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Day archive, or null if there is no valid day archive for
+	 *         the date. */
+	private DayArchive lookupDayArchive(String date) throws IOException {
+		return DayArchive.lookup(getDayPath(date),
+			getTrafficPath(date));
+	}
+
+	/** Get sample data from the day archive for a date.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return Buffer of sample data, or null if the sample file is not
+	 *         in a day archive. */
+	private ByteBuffer daySamples(String date, String name)
 		throws IOException
 	{
-		ZipFile zf = new ZipFile(traffic);
-		try {
-			Enumeration e = zf.entries();
-			while (e.hasMoreElements()) {
-				ZipEntry ze = (ZipEntry)e.nextElement();
-				String name = ze.getName();
-				if (isValidSampleFile(name))
-					sensors.add(sensor_id(name));
+		DayArchive da = lookupDayArchive(date);
+		return (da != null) ? da.getSamples(name) : null;
+	}
+
+	/** Lookup the sensor index of a .traffic file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @return Sensor index, or null if there is no valid .traffic file
+	 *         for the date. */
+	private SensorIndex lookupIndex(String date) throws IOException {
+		File traffic = getTrafficPath(date);
+		if (traffic.canRead() && traffic.isFile()) {
+			try {
+				return SensorIndex.lookup(traffic,
+					getIndexPath(date), ZIP_CACHE);
+			}
+			catch (ZipException e) {
+				// Not a valid zip file
 			}
 		}
-		finally {
-			zf.close();
-		}
+		return null;
 	}
 
-	/** Get an InputStream for the given date and sample file.
+	/** Get an InputStream for the given date and sample file.  Binned
+	 * sample files are read into memory, sharing the read with any
+	 * concurrent requests for the same file.
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
 	 * @return InputStream from which sample data can be read. */
 	public InputStream sampleInputStream(String date, String name)
 		throws IOException
+	{
+		if (isBinnedFile(name))
+			return new ByteArrayInputStream(sampleBytes(date, name));
+		else
+			return openInputStream(date, name);
+	}
+
+	/** Get the data of a binned sample file.  A day archive takes
+	 * precedence over other files.  Concurrent requests for the same
+	 * file share one read.  The returned array must not be modified.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Binned sample file name.
+	 * @return Sample file data. */
+	private byte[] sampleBytes(final String date, final String name)
+		throws IOException
+	{
+		final SampleFormat fmt = SampleFormat.lookup(name);
+		if (fmt == null)
+			throw new FileNotFoundException(name);
+		ByteBuffer db = daySamples(date, name);
+		if (db != null) {
+			byte[] data = new byte[db.remaining()];
+			db.get(data);
+			return data;
+		}
+		String key = dist_path.getPath() + '/' + date + '/' + name;
+		return SAMPLE_FLIGHTS.get(key, new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				InputStream in = openInputStream(date, name);
+				try {
+					ByteBuffer buf = fmt.read(in);
+					return Arrays.copyOf(buf.array(),
+						buf.limit());
+				}
+				finally {
+					in.close();
+				}
+			}
+		});
+	}
+
+	/** Open an InputStream for the given date and sample file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return InputStream from which sample data can be read. */
+	private InputStream openInputStream(String date, String name)
+		throws IOException
 	{
 		assert date.length() == 8;
 		try {
@@ -371,12 +767,18 @@ public class SensorArchive {
 	private InputStream getZipInputStream(String date, String name)
 		throws IOException
 	{
+		SensorIndex idx = lookupIndex(date);
+		if (idx == null || !idx.mayContain(name))
+			throw new FileNotFoundException(name);
 		File traffic = getTrafficPath(date);
 		try {
-			ZipFile zip = new ZipFile(traffic);
-			ZipEntry entry = zip.getEntry(name);
-			if (entry != null)
-				return zip.getInputStream(entry);
+			ZipDirectory dir = ZIP_CACHE.lookup(traffic);
+			int i = dir.find(name);
+			if (i >= 0) {
+				if (dir.getMethod(i) == ZipEntry.DEFLATED)
+					Metrics.ZIP_INFLATED.increment();
+				return dir.getInputStream(i);
+			}
 		}
 		catch (ZipException e) {
 			// Defer to FileNotFoundException, below
@@ -384,6 +786,72 @@ public class SensorArchive {
 		throw new FileNotFoundException(name);
 	}
 
+	/** Get a gzip InputStream for the given date and sample file.  The
+	 * stored (deflated) data is read from the .traffic file and framed
+	 * as gzip, without inflating it.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return InputStream of gzip data, or null if the sample is not
+	 *         stored deflated in a .traffic file. */
+	public InputStream gzipInputStream(String date, String name)
+		throws IOException
+	{
+		assert date.length() == 8;
+		if (daySamples(date, name) != null)
+			return null;
+		SensorIndex idx = lookupIndex(date);
+		if (idx == null || !idx.mayContain(name))
+			return null;
+		File traffic = getTrafficPath(date);
+		ZipDirectory dir = ZIP_CACHE.lookup(traffic);
+		try {
+			int i = dir.find(name);
+			if (i >= 0 && dir.getMethod(i) == ZipEntry.DEFLATED) {
+				return gzipFrame(dir.getStored(i),
+					dir.getCrc(i), dir.getSize(i));
+			}
+			return null;
+		}
+		catch (ZipException e) {
+			return null;
+		}
+	}
+
+	/** Get the regular file for the given date and sample file.  A sample
+	 * in a day archive or .traffic file takes precedence over a regular
+	 * file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return Regular sample file, or null if sample is not stored in a
+	 *         readable regular file. */
+	public File sampleFile(String date, String name) throws IOException {
+		assert date.length() == 8;
+		if (daySamples(date, name) != null ||
+		    zipEntryCrc(date, name) >= 0)
+			return null;
+		File file = new File(getDatePath(date), name);
+		return (file.canRead() && file.isFile()) ? file : null;
+	}
+
+	/** Get the CRC-32 of a sample file in a .traffic file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return CRC-32, or -1 if sample file is not in .traffic file. */
+	private long zipEntryCrc(String date, String name) throws IOException {
+		SensorIndex idx = lookupIndex(date);
+		if (idx == null || !idx.mayContain(name))
+			return -1;
+		File traffic = getTrafficPath(date);
+		try {
+			ZipDirectory dir = ZIP_CACHE.lookup(traffic);
+			int i = dir.find(name);
+			return (i >= 0) ? dir.getCrc(i) : -1;
+		}
+		catch (ZipException e) {
+			return -1;
+		}
+	}
+
 	/** Get a sample input stream from a regular file.
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
@@ -402,60 +870,298 @@ public class SensorArchive {
 		throws IOException
 	{
 		assert date.length() == 8;
-		SampleBin bin = createSampleBin(name);
-		if (bin != null) {
-			String vlog = sensor_id(name) + ".vlog";
-			VehicleEventLog log = createVLog(
-				sampleInputStream(date, vlog));
-			log.bin30SecondSamples(bin);
-			return new ByteArrayInputStream(bin.getData());
+		int period = DerivedBins.derivedPeriod(name);
+		if (period > 0) {
+			DerivedBins db = lookupDerivedBins(date, sensor_id(name),
+				period);
+			Metrics.markVLogBinned();
+			return new ByteArrayInputStream(db.getData(name));
 		} else
 			throw new FileNotFoundException(name);
 	}
 
-	/** Create and process a vehicle event log.
-	 * @param in InputStream to read .vlog events.
-	 * @return Vehicle event log object. */
-	private VehicleEventLog createVLog(InputStream in) throws IOException {
+	/** Lookup the bins derived from a .vlog file.  They are binned from
+	 * the .vlog file if they are not cached, or not current.  Concurrent
+	 * lookups for the same bins share one lookup.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @param period Sample period (seconds).
+	 * @return Derived bins for the sensor. */
+	private DerivedBins lookupDerivedBins(final String date,
+		final String sid, final int period) throws IOException
+	{
+		String key = vlogKey(date, sid) + '/' + period;
+		return BIN_FLIGHTS.get(key, new Callable<DerivedBins>() {
+			public DerivedBins call() throws IOException {
+				return binDerived(date, sid, period);
+			}
+		});
+	}
+
+	/** Lookup or bin the bins derived from a .vlog file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @param period Sample period (seconds).
+	 * @return Derived bins for the sensor. */
+	private DerivedBins binDerived(String date, String sid, int period)
+		throws IOException
+	{
+		String vlog = sid + VLOG_EXT;
+		CacheValidator cv = sampleValidator(date, vlog);
+		if (cv == null)
+			throw new FileNotFoundException(vlog);
+		String tag = cv.getETag(LengthClass.getBoundsTag());
+		String key = vlogKey(date, sid) + '/' + period;
+		File sidecar = getBinsPath(date, sid, period);
+		DerivedBins db = DerivedBins.lookup(key, sidecar, tag);
+		if (db == null) {
+			// Build the time index in the same pass, if needed
+			String vtag = cv.getETag("");
+			String vkey = vlogKey(date, sid);
+			File vidx = getVLogIndexPath(date, sid);
+			VLogIndex vi = VLogIndex.lookup(vkey, vidx, vtag);
+			VLogIndex nvi = (vi == null) ? new VLogIndex(vtag) : null;
+			InputStream in = sampleInputStream(date, vlog);
+			try {
+				db = DerivedBins.bin(tag, period, in, nvi);
+			}
+			finally {
+				in.close();
+			}
+			db.store(key, sidecar);
+			if (nvi != null)
+				nvi.store(vkey, vidx);
+		}
+		return db;
+	}
+
+	/** Get the cache key of a .vlog file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @return Cache key (district / date / sensor). */
+	private String vlogKey(String date, String sid) {
+		return dist_path.getPath() + '/' + date + '/' + sid;
+	}
+
+	/** Lookup the time index of a .vlog file.  The index is built from
+	 * the .vlog file if it is not cached, or not current.  Concurrent
+	 * lookups for the same index share one lookup.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @return Time index of the .vlog file. */
+	private VLogIndex lookupVLogIndex(final String date, final String sid)
+		throws IOException
+	{
+		return INDEX_FLIGHTS.get(vlogKey(date, sid),
+			new Callable<VLogIndex>()
+		{
+			public VLogIndex call() throws IOException {
+				return indexVLog(date, sid);
+			}
+		});
+	}
+
+	/** Lookup or build the time index of a .vlog file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param sid Sensor ID.
+	 * @return Time index of the .vlog file. */
+	private VLogIndex indexVLog(String date, String sid)
+		throws IOException
+	{
+		String vlog = sid + VLOG_EXT;
+		CacheValidator cv = sampleValidator(date, vlog);
+		if (cv == null)
+			throw new FileNotFoundException(vlog);
+		String tag = cv.getETag("");
+		String key = vlogKey(date, sid);
+		File sidecar = getVLogIndexPath(date, sid);
+		VLogIndex vi = VLogIndex.lookup(key, sidecar, tag);
+		if (vi == null) {
+			InputStream in = sampleInputStream(date, vlog);
+			try {
+				vi = VLogIndex.build(tag, in);
+			}
+			finally {
+				in.close();
+			}
+			vi.store(key, sidecar);
+		}
+		return vi;
+	}
+
+	/** Get an InputStream for the events of a .vlog file within a time
+	 * window.  The events are located using the time index of the log,
+	 * so the window is rounded out to whole minutes.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Vehicle event log file name.
+	 * @param w Time window.
+	 * @return InputStream of events in the window. */
+	public InputStream vlogInputStream(String date, String name,
+		TimeWindow w) throws IOException
+	{
+		assert date.length() == 8;
+		assert name.endsWith(VLOG_EXT);
+		long[] range = lookupVLogIndex(date, sensor_id(name))
+			.getRange(w);
+		InputStream in = sampleInputStream(date, name);
 		try {
-			InputStreamReader reader = new InputStreamReader(in);
-			BufferedReader b = new BufferedReader(reader);
-			VehicleEventLog log = new VehicleEventLog(b);
-			log.propogateStampsForward();
-			log.propogateStampsBackward();
-			log.interpolateMissingStamps();
-			return log;
-		}
-		finally {
+			skipFully(in, range[0]);
+		}
+		catch (IOException e) {
 			in.close();
+			throw e;
 		}
+		return new RangeInputStream(in, range[1] - range[0]);
 	}
 
-	/** Get a sample Iterator for the given date and sample file.
+	/** Get an array of all samples for the given date and sample file,
+	 * rolled up into a longer period.
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
-	 * @return Iterator of all samples. */
-	public Iterator<String> sampleIterator(String date, String name)
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @return Array of samples (MISSING_DATA for missing samples). */
+	public int[] sampleArray(String date, String name, int period)
 		throws IOException
 	{
-		InputStream in = sampleInputStream(date, name);
-		try {
-			BufferedInputStream bis = new BufferedInputStream(in);
-			DataInputStream dis = new DataInputStream(bis);
-			SampleReader sr = sampleReader(name);
-			ArrayList<String> al = new ArrayList<String>(2880);
-			while (true) {
-				try {
-					al.add(formatInt(sr.getSample(dis)));
-				}
-				catch (EOFException e) {
-					break;
-				}
+		if (period > 0)
+			return rollupArray(date, name, period);
+		else
+			return sampleArray(date, name);
+	}
+
+	/** Check if a rollup period is valid for a sample file.
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @return true if period is valid. */
+	static public boolean isValidRollup(String name, int period) {
+		return period == 0 || (isRollupFile(name) &&
+		       SampleRollup.isValidPeriod(period, samplePeriod(name)));
+	}
+
+	/** Get an array of all samples for the given date and sample file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return Array of samples (MISSING_DATA for missing samples). */
+	public int[] sampleArray(String date, String name) throws IOException {
+		SampleFormat fmt = SampleFormat.lookup(name);
+		if (fmt == null)
+			throw new FileNotFoundException(name);
+		ByteBuffer db = daySamples(date, name);
+		if (db != null)
+			return fmt.decode(db);
+		return fmt.decode(ByteBuffer.wrap(sampleBytes(date, name)));
+	}
+
+	/** Get a cache validator for a sample file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return Validator for the file the sample data would be read from,
+	 *         or null if there is none. */
+	public CacheValidator sampleValidator(String date, String name)
+		throws IOException
+	{
+		DayArchive da = lookupDayArchive(date);
+		if (da != null && da.contains(name)) {
+			return new CacheValidator(da.getModified(),
+				da.getSize(), -1, true);
+		}
+		long crc = zipEntryCrc(date, name);
+		if (crc >= 0) {
+			File traffic = getTrafficPath(date);
+			return new CacheValidator(traffic.lastModified(),
+				traffic.length(), crc, true);
+		}
+		File file = new File(getDatePath(date), name);
+		if (file.canRead() && file.isFile()) {
+			return new CacheValidator(file.lastModified(),
+				file.length(), -1, false);
+		}
+		if (DerivedBins.isDerived(name)) {
+			return sampleValidator(date,
+				sensor_id(name) + VLOG_EXT);
+		}
+		return null;
+	}
+
+	/** Get sample data rolled up into a longer period.  Rolled-up data
+	 * is cached until the source data (or the volume data weighting a
+	 * speed rollup) is modified.  Concurrent requests
+	 * for the same rollup share one computation.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name (.v30, .s30 or .c30).
+	 * @param period Rollup period (seconds).
+	 * @return Array of rolled-up samples. */
+	public int[] rollupArray(final String date, final String name,
+		final int period) throws IOException
+	{
+		assert isRollupFile(name);
+		final float min_valid = getRollupMinValid();
+		final String key = dist_path.getPath() + '/' + date + '/' +
+			name + '/' + period + '/' + min_valid;
+		return ROLLUP_FLIGHTS.get(key, new Callable<int[]>() {
+			public int[] call() throws IOException {
+				return rollupArray(date, name, period,
+					min_valid, key);
 			}
-			return al.iterator();
+		});
+	}
+
+	/** Get sample data rolled up into a longer period.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name (.v30, .s30 or .c30).
+	 * @param period Rollup period (seconds).
+	 * @param min_valid Minimum fraction of valid samples.
+	 * @param key Rollup cache key.
+	 * @return Array of rolled-up samples. */
+	private int[] rollupArray(String date, String name, int period,
+		float min_valid, String key) throws IOException
+	{
+		CacheValidator cv = sampleValidator(date, name);
+		String tag = ((cv != null) ? cv.getTag() : "") +
+			rollupWeightTag(date, name);
+		Rollup r = getRollup(key);
+		boolean hit = r != null && r.tag.equals(tag);
+		Metrics.ROLLUPS.record(hit);
+		if (hit)
+			return r.samples;
+		SampleRollup sr = new SampleRollup(period, samplePeriod(name),
+			min_valid);
+		int[] samples = sampleArray(date, name);
+		int[] rolled = name.endsWith(".s30")
+		             ? sr.weightedAverage(samples,
+		                                  volumeArray(date, name))
+		             : sr.sum(samples);
+		putRollup(key, new Rollup(tag, rolled));
+		return rolled;
+	}
+
+	/** Get a tag of the volume data used to weight a speed rollup.
+	 * Since a speed rollup depends on the volume data, the tag must be
+	 * part of any validator for it.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @return Tag of volume data, or an empty string if the file is not
+	 *         a speed file or there is no volume data. */
+	public String rollupWeightTag(String date, String name)
+		throws IOException
+	{
+		if (!name.endsWith(".s30"))
+			return "";
+		CacheValidator cv = sampleValidator(date,
+			sensor_id(name) + ".v30");
+		return (cv != null) ? "w" + cv.getTag() : "";
+	}
+
+	/** Get the volume samples to weight a speed sample file.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Speed sample file name.
+	 * @return Array of volume samples, or null if not available. */
+	private int[] volumeArray(String date, String name) throws IOException {
+		try {
+			return sampleArray(date, sensor_id(name) + ".v30");
 		}
-		finally {
-			in.close();
+		catch (FileNotFoundException e) {
+			return null;
 		}
 	}
 }
@@ -0,0 +1,166 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Inverted index of the dates each sensor in a district has data.  The
+ * index is built by scanning every date in the archive once; after that,
+ * only dates which are new or modified are scanned again.  Scans are only
+ * done by a background task; lookups read the snapshot published by the
+ * last scan, and never wait for a scan in progress.
+ *
+ * @author Douglas Lau
+ */
+public class SensorDates {
+
+	/** Indexes for all districts */
+	static private final HashMap<String, SensorDates> INDEXES =
+		new HashMap<String, SensorDates>();
+
+	/** Get the index for a district.
+	 * @param key District path.
+	 * @return Index for the district. */
+	static public synchronized SensorDates forDistrict(String key) {
+		SensorDates sd = INDEXES.get(key);
+		if (sd == null) {
+			sd = new SensorDates();
+			INDEXES.put(key, sd);
+		}
+		return sd;
+	}
+
+	/** Date bitmaps for all sensors, only used while scanning */
+	private final HashMap<String, DateBitmap> sensors =
+		new HashMap<String, DateBitmap>();
+
+	/** Modified time of each indexed date, only used while scanning */
+	private final HashMap<String, Long> dates = new HashMap<String, Long>();
+
+	/** Flag indicating the index changed during a scan */
+	private boolean changed = false;
+
+	/** Snapshot of date bitmaps published by the last scan, or null
+	 * before the first scan is complete.  The map and bitmaps are never
+	 * modified after being published. */
+	private volatile HashMap<String, DateBitmap> snapshot = null;
+
+	/** Create a new (empty) sensor date index */
+	private SensorDates() { }
+
+	/** Update the index from the archive, and publish a new snapshot if
+	 * anything changed (or if this is the first complete scan).  This
+	 * should only be called from a background task, since it may take a
+	 * long time.
+	 * @param sa Sensor archive for the district. */
+	public synchronized void update(SensorArchive sa) throws IOException {
+		HashSet<String> seen = new HashSet<String>();
+		Iterator<String> years = sa.lookupYears();
+		while (years.hasNext()) {
+			Iterator<String> it = sa.lookupDates(years.next());
+			while (it.hasNext()) {
+				String date = it.next();
+				seen.add(date);
+				updateDate(sa, date);
+			}
+		}
+		for (String date: new ArrayList<String>(dates.keySet())) {
+			if (!seen.contains(date))
+				clearDate(date);
+		}
+		if (changed || snapshot == null) {
+			publish();
+			changed = false;
+		}
+	}
+
+	/** Publish a snapshot of the date bitmaps */
+	private void publish() {
+		HashMap<String, DateBitmap> snap =
+			new HashMap<String, DateBitmap>(sensors.size() * 2);
+		for (String sid: sensors.keySet())
+			snap.put(sid, new DateBitmap(sensors.get(sid)));
+		snapshot = snap;
+	}
+
+	/** Update the index for one date, if it is new or modified.
+	 * @param sa Sensor archive for the district.
+	 * @param date String date (8 digits yyyyMMdd). */
+	private void updateDate(SensorArchive sa, String date)
+		throws IOException
+	{
+		int day = DateBitmap.toDay(date);
+		if (day < 0)
+			return;
+		long mtime = sa.dateModified(date);
+		Long mt = dates.get(date);
+		if (mt != null) {
+			if (mt == mtime)
+				return;
+			clearDate(date);
+		}
+		Iterator<String> it = sa.lookup(date);
+		while (it.hasNext())
+			getBitmap(it.next()).add(day);
+		dates.put(date, mtime);
+		changed = true;
+	}
+
+	/** Clear one date from the index.
+	 * @param date String date (8 digits yyyyMMdd). */
+	private void clearDate(String date) {
+		int day = DateBitmap.toDay(date);
+		Iterator<DateBitmap> it = sensors.values().iterator();
+		while (it.hasNext()) {
+			DateBitmap bm = it.next();
+			bm.remove(day);
+			if (bm.isEmpty())
+				it.remove();
+		}
+		dates.remove(date);
+		changed = true;
+	}
+
+	/** Get the date bitmap for a sensor, creating it if necessary */
+	private DateBitmap getBitmap(String sid) {
+		DateBitmap bm = sensors.get(sid);
+		if (bm == null) {
+			bm = new DateBitmap();
+			sensors.put(sid, bm);
+		}
+		return bm;
+	}
+
+	/** Lookup the dates a sensor has data, as of the last scan.
+	 * @param sid Sensor ID.
+	 * @return Iterator of dates (8 digits yyyyMMdd), in order, or null
+	 *         if the first scan is not complete. */
+	public Iterator<String> lookup(String sid) {
+		HashMap<String, DateBitmap> snap = snapshot;
+		if (snap == null)
+			return null;
+		DateBitmap bm = snap.get(sid);
+		if (bm != null)
+			return bm.dates();
+		else
+			return Collections.<String>emptyList().iterator();
+	}
+}
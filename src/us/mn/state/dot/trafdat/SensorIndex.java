@@ -0,0 +1,251 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the sensors in a .traffic file.  For each sensor, the index
+ * records which sample file types exist.  An index is stored in a sidecar
+ * file, which is rebuilt whenever the .traffic file is modified.
+ *
+ * @author Douglas Lau
+ */
+public class SensorIndex {
+
+	/** Sample file extensions, in bit order */
+	static private final String[] EXTS = {
+		".v30", ".c30", ".s30", ".vmc30", ".vs30", ".vm30", ".vl30",
+		".pr60", ".pt60", ".vlog"
+	};
+
+	/** Magic number for index files ("TIDX") */
+	static private final int MAGIC = 0x54494458;
+
+	/** Version of index file format */
+	static private final int VERSION = 2;
+
+	/** Minimum size of one zip entry (local and central headers) */
+	static private final int MIN_ENTRY_SIZE = 30 + 46;
+
+	/** Maximum number of indexes cached in memory */
+	static private final int MAX_CACHED = 64;
+
+	/** Cache of recently used indexes */
+	static private final SidecarCache<File, SensorIndex> CACHE =
+		new SidecarCache<File, SensorIndex>(MAX_CACHED)
+	{
+		protected SensorIndex read(DataInputStream dis)
+			throws IOException
+		{
+			return SensorIndex.read(dis);
+		}
+		protected void write(SensorIndex v, DataOutputStream dos)
+			throws IOException
+		{
+			v.write(dos);
+		}
+	};
+
+	/** Get the bit number of a sample file extension.
+	 * @param ext Sample file extension.
+	 * @return Bit number, or -1 if unknown. */
+	static private int extBit(String ext) {
+		for (int i = 0; i < EXTS.length; i++) {
+			if (EXTS[i].equals(ext))
+				return i;
+		}
+		return -1;
+	}
+
+	/** Get the sample file extension of a file name.
+	 * @param name Sample file name.
+	 * @return Extension, including the dot, or null. */
+	static private String extension(String name) {
+		int i = name.indexOf('.');
+		return (i > 0) ? name.substring(i) : null;
+	}
+
+	/** Get the sensor ID for a given file name.
+	 * @param name Sample file name.
+	 * @return Sensor ID. */
+	static private String sensorId(String name) {
+		int i = name.indexOf('.');
+		return (i > 0) ? name.substring(0, i) : name;
+	}
+
+	/** Lookup the index for a .traffic file.  The index is read from
+	 * the sidecar file if it is current, otherwise it is rebuilt from
+	 * the .traffic file and the sidecar is rewritten.
+	 * @param traffic Traffic file.
+	 * @param sidecar Sidecar index file.
+	 * @param zips Cache of mapped zip files.
+	 * @return Index of sensors in traffic file. */
+	static public SensorIndex lookup(File traffic, File sidecar,
+		ZipFileCache zips) throws IOException
+	{
+		long mtime = traffic.lastModified();
+		long size = traffic.length();
+		SensorIndex idx = CACHE.get(traffic);
+		boolean hit = idx != null && idx.isCurrent(mtime, size);
+		Metrics.SENSOR_INDEX.record(hit);
+		if (hit)
+			return idx;
+		idx = CACHE.readFile(sidecar);
+		if (idx == null || !idx.isCurrent(mtime, size)) {
+			idx = build(traffic, zips, mtime, size);
+			CACHE.writeFile(sidecar, idx);
+		}
+		CACHE.put(traffic, idx);
+		return idx;
+	}
+
+	/** Read an index from a data input stream.  The number of sensors
+	 * is checked against the .traffic file size, so a corrupt file is
+	 * just rebuilt. */
+	static private SensorIndex read(DataInputStream dis)
+		throws IOException
+	{
+		if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+			return null;
+		long mtime = dis.readLong();
+		long size = dis.readLong();
+		int n_sensors = dis.readInt();
+		if (n_sensors < 0 || n_sensors > size / MIN_ENTRY_SIZE)
+			return null;
+		SensorIndex idx = new SensorIndex(mtime, size, n_sensors);
+		for (int i = 0; i < n_sensors; i++) {
+			idx.sensors[i] = dis.readUTF();
+			idx.masks[i] = dis.readInt();
+		}
+		return idx;
+	}
+
+	/** Build an index from the entries in a .traffic file */
+	static private SensorIndex build(File traffic, ZipFileCache zips,
+		long mtime, long size) throws IOException
+	{
+		TreeMap<String, Integer> ents = new TreeMap<String, Integer>();
+		ZipDirectory dir = zips.lookup(traffic);
+		for (int i = 0; i < dir.size(); i++) {
+			String name = dir.getName(i);
+			if (SensorArchive.isValidSampleFile(name))
+				addEntry(ents, name);
+		}
+		SensorIndex idx = new SensorIndex(mtime, size, ents.size());
+		int i = 0;
+		for (Map.Entry<String, Integer> ent: ents.entrySet()) {
+			idx.sensors[i] = ent.getKey();
+			idx.masks[i] = ent.getValue();
+			i++;
+		}
+		return idx;
+	}
+
+	/** Add an entry to a map of sensor bit masks */
+	static private void addEntry(TreeMap<String, Integer> ents,
+		String name)
+	{
+		String sid = sensorId(name);
+		Integer mask = ents.get(sid);
+		int m = (mask != null) ? mask : 0;
+		int b = extBit(extension(name));
+		if (b >= 0)
+			m |= 1 << b;
+		ents.put(sid, m);
+	}
+
+	/** Last modified time of .traffic file */
+	private final long mtime;
+
+	/** Size of .traffic file */
+	private final long size;
+
+	/** Sorted sensor IDs */
+	private final String[] sensors;
+
+	/** Bit masks of sample file types for each sensor */
+	private final int[] masks;
+
+	/** Create a new sensor index */
+	private SensorIndex(long mt, long sz, int n_sensors) {
+		mtime = mt;
+		size = sz;
+		sensors = new String[n_sensors];
+		masks = new int[n_sensors];
+	}
+
+	/** Check if the index is current for a .traffic file */
+	private boolean isCurrent(long mt, long sz) {
+		return mtime == mt && size == sz;
+	}
+
+	/** Write the index to a data output stream */
+	private void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeLong(mtime);
+		dos.writeLong(size);
+		dos.writeInt(sensors.length);
+		for (int i = 0; i < sensors.length; i++) {
+			dos.writeUTF(sensors[i]);
+			dos.writeInt(masks[i]);
+		}
+	}
+
+	/** Add all sensors to a collection.
+	 * @param c Collection of sensor IDs. */
+	public void addSensors(Collection<String> c) {
+		for (String s: sensors)
+			c.add(s);
+	}
+
+	/** Find the position of a sensor in the index.
+	 * @param sid Sensor ID.
+	 * @return Position, or negative if not found. */
+	private int find(String sid) {
+		int lo = 0;
+		int hi = sensors.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = sensors[mid].compareTo(sid);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** Check if the .traffic file may contain a sample file.  Names
+	 * which cannot be indexed always return true.
+	 * @param name Sample file name.
+	 * @return false if sample file is known not to exist. */
+	public boolean mayContain(String name) {
+		String ext = extension(name);
+		if (ext == null || extBit(ext) < 0)
+			return true;
+		int i = find(sensorId(name));
+		return i >= 0 && (masks[i] & (1 << extBit(ext))) != 0;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded in-memory cache of values which are also stored in sidecar
+ * files, so they survive a restart.  Values are evicted in least-recently
+ * used order when the total weight is too large.  A sidecar is written to
+ * a unique temporary file and renamed into place, so concurrent writers
+ * never see a partial file.  Failure to read or write a sidecar is not an
+ * error; the value will just be rebuilt.
+ *
+ * @author Douglas Lau
+ */
+abstract public class SidecarCache<K, V> {
+
+	/** Extension for temporary files */
+	static private final String TEMP_EXT = ".tmp";
+
+	/** Mapping of cached values, in access order */
+	private final LinkedHashMap<K, V> cache =
+		new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	/** Maximum total weight of cached values */
+	private final long max_weight;
+
+	/** Total weight of cached values */
+	private long weight = 0;
+
+	/** Create a new sidecar cache.
+	 * @param mw Maximum total weight of cached values. */
+	protected SidecarCache(long mw) {
+		max_weight = mw;
+	}
+
+	/** Get the weight of a value.  By default, every value weighs 1, so
+	 * the maximum weight is a number of values. */
+	protected long weigh(V v) {
+		return 1;
+	}
+
+	/** Read a value from a data input stream.
+	 * @return Value, or null if the data is invalid. */
+	abstract protected V read(DataInputStream dis) throws IOException;
+
+	/** Write a value to a data output stream */
+	abstract protected void write(V v, DataOutputStream dos)
+		throws IOException;
+
+	/** Get a cached value.
+	 * @param key Cache key.
+	 * @return Cached value, or null if not cached. */
+	public synchronized V get(K key) {
+		return cache.get(key);
+	}
+
+	/** Put a value into the cache.
+	 * @param key Cache key.
+	 * @param v Value to cache. */
+	public synchronized void put(K key, V v) {
+		V old = cache.put(key, v);
+		if (old != null)
+			weight -= weigh(old);
+		weight += weigh(v);
+		Iterator<V> it = cache.values().iterator();
+		while (weight > max_weight && it.hasNext()) {
+			V e = it.next();
+			if (e != v) {
+				weight -= weigh(e);
+				it.remove();
+			}
+		}
+	}
+
+	/** Remove all values from the cache */
+	public synchronized void clear() {
+		cache.clear();
+		weight = 0;
+	}
+
+	/** Read a value from a sidecar file.
+	 * @param sidecar Sidecar file.
+	 * @return Value, or null if the file is missing or invalid. */
+	public V readFile(File sidecar) {
+		if (!sidecar.isFile())
+			return null;
+		try {
+			DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(
+				new FileInputStream(sidecar)));
+			try {
+				return read(dis);
+			}
+			finally {
+				dis.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** Write a value to a sidecar file.
+	 * @param sidecar Sidecar file.
+	 * @param v Value to write. */
+	public void writeFile(File sidecar, V v) {
+		File dir = sidecar.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return;
+		File tmp;
+		try {
+			tmp = File.createTempFile(sidecar.getName() + '.',
+				TEMP_EXT, dir);
+		}
+		catch (IOException e) {
+			return;
+		}
+		try {
+			DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+			try {
+				write(v, dos);
+			}
+			finally {
+				dos.close();
+			}
+			if (!tmp.renameTo(sidecar))
+				tmp.delete();
+		}
+		catch (IOException e) {
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalescing of identical concurrent computations.  The first caller for a
+ * key runs the computation; any other callers for the same key wait for it
+ * and share the result (or exception).  Nothing is cached after the
+ * computation is complete.
+ *
+ * @author Douglas Lau
+ */
+public class SingleFlight<V> {
+
+	/** Computations in flight */
+	private final HashMap<String, FutureTask<V>> flights =
+		new HashMap<String, FutureTask<V>>();
+
+	/** Get a value, sharing the computation with concurrent callers.
+	 * @param key Key of value.
+	 * @param c Computation of value.
+	 * @return Computed value. */
+	public V get(String key, Callable<V> c) throws IOException {
+		FutureTask<V> task;
+		boolean run = false;
+		synchronized (this) {
+			task = flights.get(key);
+			if (task == null) {
+				task = new FutureTask<V>(c);
+				flights.put(key, task);
+				run = true;
+			}
+		}
+		if (run) {
+			try {
+				task.run();
+			}
+			finally {
+				remove(key, task);
+			}
+		}
+		return getResult(task);
+	}
+
+	/** Remove a completed computation */
+	private synchronized void remove(String key, FutureTask<V> task) {
+		if (flights.get(key) == task)
+			flights.remove(key);
+	}
+
+	/** Get the result of a computation, waiting if necessary */
+	static private <V> V getResult(FutureTask<V> task) throws IOException {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException)
+				throw (IOException)c;
+			else if (c instanceof RuntimeException)
+				throw (RuntimeException)c;
+			else if (c instanceof Error)
+				throw (Error)c;
+			else
+				throw new IOException(c);
+		}
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * Project: Trafdat
- * Copyright (C) 2007-2010  Minnesota Department of Transportation
+ * Copyright (C) 2007-2014  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -19,29 +19,17 @@ package us.mn.state.dot.trafdat;
  *
  * @author Douglas Lau
  */
-public class SpeedSampleBin implements SampleBin {
+public class SpeedSampleBin extends AbstractSampleBin {
 
-	/** Binned 30-second speed data */
-	protected final byte[] spd = new byte[SAMPLES_PER_DAY];
-
-	/** Create a new speed sample bin */
-	public SpeedSampleBin() {
-		for(int i = 0; i < SAMPLES_PER_DAY; i++)
-			spd[i] = SampleData.MISSING_DATA;
-	}
-
-	/** Add one data sample to the bin */
-	public void addSample(SampleData sam) {
-		byte s = (byte)sam.getSpeed();
-		if(s >= 0) {
-			int p = sam.getPeriod();
-			if(p >= 0 && p < SAMPLES_PER_DAY)
-				spd[p] = s;
-		}
+	/** Create a new speed sample bin.
+	 * @param n_samples Number of samples per day.
+	 * @param w Width of each sample (1 or 2 bytes). */
+	public SpeedSampleBin(int n_samples, int w) {
+		super(n_samples, w);
 	}
 
-	/** Get the binned data */
-	public byte[] getData() {
-		return spd;
+	/** Get the value to bin from a data sample */
+	protected int getValue(SampleData sam) {
+		return sam.getSpeed();
 	}
 }
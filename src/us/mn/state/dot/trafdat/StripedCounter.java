@@ -0,0 +1,75 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter, striped across several cells so that concurrent
+ * threads rarely update the same cell.  Each cell is padded onto its own
+ * cache line.  Reading the total sums all cells, so it is only exact when
+ * there are no concurrent updates.
+ *
+ * @author Douglas Lau
+ */
+public class StripedCounter {
+
+	/** Number of longs per cell (one 64-byte cache line) */
+	static private final int PAD = 8;
+
+	/** Maximum number of stripes */
+	static private final int MAX_STRIPES = 64;
+
+	/** Number of stripes (power of 2) */
+	static private final int N_STRIPES = countStripes();
+
+	/** Count the number of stripes to use */
+	static private int countStripes() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int n = 1;
+		while (n < cpus * 2 && n < MAX_STRIPES)
+			n <<= 1;
+		return n;
+	}
+
+	/** Get the cell index for the current thread */
+	static private int cellIndex() {
+		int h = (int)Thread.currentThread().getId() * 0x9e3779b9;
+		h ^= h >>> 16;
+		return (h & (N_STRIPES - 1)) * PAD;
+	}
+
+	/** Counter cells */
+	private final AtomicLongArray cells =
+		new AtomicLongArray(N_STRIPES * PAD);
+
+	/** Add a value to the counter */
+	public void add(long v) {
+		cells.getAndAdd(cellIndex(), v);
+	}
+
+	/** Add one to the counter */
+	public void increment() {
+		add(1);
+	}
+
+	/** Get the total of the counter */
+	public long sum() {
+		long s = 0;
+		for (int i = 0; i < N_STRIPES; i++)
+			s += cells.get(i * PAD);
+		return s;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.util.Arrays;
+
+/**
+ * A window of time within one day, from a start time (inclusive) to an end
+ * time (exclusive).  Times are specified as hh:mm:ss; the end of the day is
+ * 24:00:00.
+ *
+ * @author Douglas Lau
+ */
+public class TimeWindow {
+
+	/** Window covering a whole day */
+	static public final TimeWindow WHOLE_DAY =
+		new TimeWindow(0, SampleFormat.SECONDS_PER_DAY);
+
+	/** Parse a time window.
+	 * @param start Start time (hh:mm:ss), or null for start of day.
+	 * @param end End time (hh:mm:ss), or null for end of day.
+	 * @return Time window, or null if invalid. */
+	static public TimeWindow parse(String start, String end) {
+		int s = (start != null) ? parseTime(start) : 0;
+		int e = (end != null)
+		      ? parseTime(end)
+		      : SampleFormat.SECONDS_PER_DAY;
+		if (s < 0 || e < 0 || s >= e)
+			return null;
+		else if (s == 0 && e == SampleFormat.SECONDS_PER_DAY)
+			return WHOLE_DAY;
+		else
+			return new TimeWindow(s, e);
+	}
+
+	/** Parse a time of day (hh:mm:ss).
+	 * @param t Time of day.
+	 * @return Seconds of day (0 - 86400), or -1 if invalid. */
+	static private int parseTime(String t) {
+		if (t.length() != 8 || t.charAt(2) != ':' || t.charAt(5) != ':')
+			return -1;
+		int hour = parseDigits(t, 0);
+		int minute = parseDigits(t, 3);
+		int second = parseDigits(t, 6);
+		if (hour < 0 || minute < 0 || minute > 59 ||
+		    second < 0 || second > 59)
+			return -1;
+		int sec = hour * 3600 + minute * 60 + second;
+		return (sec <= SampleFormat.SECONDS_PER_DAY) ? sec : -1;
+	}
+
+	/** Parse two decimal digits.
+	 * @return Parsed value, or -1 if invalid. */
+	static private int parseDigits(String t, int i) {
+		char c0 = t.charAt(i);
+		char c1 = t.charAt(i + 1);
+		if (c0 < '0' || c0 > '9' || c1 < '0' || c1 > '9')
+			return -1;
+		return (c0 - '0') * 10 + (c1 - '0');
+	}
+
+	/** Start time (seconds of day, inclusive) */
+	private final int start;
+
+	/** End time (seconds of day, exclusive) */
+	private final int end;
+
+	/** Create a new time window */
+	private TimeWindow(int s, int e) {
+		start = s;
+		end = e;
+	}
+
+	/** Get the start time (seconds of day, inclusive) */
+	public int getStart() {
+		return start;
+	}
+
+	/** Get the end time (seconds of day, exclusive) */
+	public int getEnd() {
+		return end;
+	}
+
+	/** Check if the window covers a whole day */
+	public boolean isWholeDay() {
+		return start == 0 && end == SampleFormat.SECONDS_PER_DAY;
+	}
+
+	/** Get a variant string (for cache validation) */
+	public String getVariant() {
+		return isWholeDay() ? "" : "t" + start + '-' + end;
+	}
+
+	/** Get the samples in a window.  Samples which start within the
+	 * window are included.
+	 * @param samples Array of samples for a whole day.
+	 * @param period Sample period (seconds).
+	 * @return Array of samples in the window. */
+	public int[] slice(int[] samples, int period) {
+		if (isWholeDay())
+			return samples;
+		int first = Math.min((start + period - 1) / period,
+			samples.length);
+		int last = Math.min((end + period - 1) / period,
+			samples.length);
+		return Arrays.copyOfRange(samples, first, last);
+	}
+}
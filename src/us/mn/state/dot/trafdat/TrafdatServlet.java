@@ -14,14 +14,27 @@
  */
 package us.mn.state.dot.trafdat;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -40,9 +53,126 @@ public class TrafdatServlet extends HttpServlet {
 	/** Maximum length of a data filename */
 	static private final int MAX_FILENAME_LENGTH = 24;
 
+	/** Maximum number of sensors in a bulk request */
+	static private final int MAX_BULK_SENSORS = 4096;
+
+	/** File name prefix for bulk requests */
+	static private final String BULK_PREFIX = "bulk";
+
+	/** Request parameter for bulk sensor list */
+	static private final String SENSORS_PARAM = "sensors";
+
+	/** Request parameter for rollup period */
+	static private final String PERIOD_PARAM = "period";
+
+	/** Request parameter for start of time window */
+	static private final String START_PARAM = "start";
+
+	/** Request parameter for end of time window */
+	static private final String END_PARAM = "end";
+
+	/** Init parameter for path to traffic data files */
+	static private final String BASE_PATH_PARAM = "basePath";
+
+	/** Init parameter for path to sensor index files */
+	static private final String INDEX_PATH_PARAM = "indexPath";
+
+	/** Servlet init parameter for rollup minimum valid fraction */
+	static private final String MIN_VALID_PARAM = "rollupMinValid";
+
+	/** Init parameter for vehicle length class bounds (ft) */
+	static private final String LENGTH_PARAM = "lengthClassBounds";
+
+	/** Init parameter for number of I/O threads */
+	static private final String IO_THREADS_PARAM = "ioThreads";
+
+	/** Init parameter for maximum queued I/O requests */
+	static private final String IO_QUEUE_PARAM = "ioQueue";
+
+	/** Init parameter for number of bulk I/O threads */
+	static private final String BULK_THREADS_PARAM = "bulkThreads";
+
+	/** Init parameter for maximum queued bulk I/O requests */
+	static private final String BULK_QUEUE_PARAM = "bulkQueue";
+
+	/** Default number of I/O threads */
+	static private final int DEFAULT_IO_THREADS = 16;
+
+	/** Default maximum queued I/O requests */
+	static private final int DEFAULT_IO_QUEUE = 64;
+
+	/** Default number of bulk I/O threads */
+	static private final int DEFAULT_BULK_THREADS = 4;
+
+	/** Default maximum queued bulk I/O requests */
+	static private final int DEFAULT_BULK_QUEUE = 16;
+
+	/** Timeout (ms) for asynchronous requests */
+	static private final long ASYNC_TIMEOUT_MS = 10 * 60 * 1000;
+
+	/** Retry-After time (seconds) when requests are rejected */
+	static private final String RETRY_AFTER = "1";
+
+	/** Retry-After time (seconds) while sensor dates are being indexed */
+	static private final String INDEX_RETRY_AFTER = "10";
+
+	/** Cache control for data which will not change */
+	static private final String CACHE_ARCHIVED =
+		"public, max-age=31536000, immutable";
+
+	/** Cache control for data which may still change */
+	static private final String CACHE_LIVE = "public, max-age=30";
+
+	/** Path component for date range requests */
+	static private final String RANGE_PATH = "range";
+
+	/** Path component for sensor date requests */
+	static private final String DATES_PATH = "dates";
+
+	/** Path for metrics requests */
+	static private final String METRICS_PATH = "metrics";
+
+	/** Content type of metrics (Prometheus text format) */
+	static private final String METRICS_TYPE =
+		"text/plain; version=0.0.4";
+
+	/** Request parameter for first date of range */
+	static private final String FROM_PARAM = "from";
+
+	/** Request parameter for last date of range */
+	static private final String TO_PARAM = "to";
+
+	/** Maximum number of days in a date range request */
+	static private final int MAX_RANGE_DAYS = 3660;
+
+	/** Number of threads to read date range requests */
+	static private final int RANGE_THREADS = 4;
+
+	/** Time (seconds) between scans for sensor date indexes */
+	static private final long SENSOR_DATES_RESCAN_SEC = 60;
+
+	/** Number of days to read ahead for a date range request */
+	static private final int RANGE_WINDOW = 8;
+
 	/** Default district ID */
 	static private final String DEFAULT_DIST = "tms";
 
+	/** Request attribute indicating container sendfile support */
+	static private final String SENDFILE =
+		"org.apache.tomcat.sendfile.support";
+
+	/** Request attribute for sendfile file name */
+	static private final String SENDFILE_FILENAME =
+		"org.apache.tomcat.sendfile.filename";
+
+	/** Request attribute for sendfile start offset */
+	static private final String SENDFILE_START =
+		"org.apache.tomcat.sendfile.start";
+
+	/** Request attribute for sendfile end offset */
+	static private final String SENDFILE_END =
+		"org.apache.tomcat.sendfile.end";
+
 	/** Split a path into component parts.
 	 * @param path Request path
 	 * @return Array of path components. */
@@ -69,21 +199,235 @@ public class TrafdatServlet extends HttpServlet {
 		return name.endsWith(".json");
 	}
 
+	/** Check if a sensor ID is valid.  Only ASCII letters, digits, '_'
+	 * and '-' are allowed, since sensor IDs are written to responses as
+	 * ASCII.
+	 * @param sid Sensor ID.
+	 * @return true if sensor ID is valid, otherwise false */
+	static private boolean isValidSensorId(String sid) {
+		if (sid.length() == 0)
+			return false;
+		for (int i = 0; i < sid.length(); i++) {
+			if (!isSensorIdChar(sid.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/** Check if a character is valid in a sensor ID */
+	static private boolean isSensorIdChar(char c) {
+		return (c >= 'A' && c <= 'Z') ||
+		       (c >= 'a' && c <= 'z') ||
+		       (c >= '0' && c <= '9') ||
+		       c == '_' || c == '-';
+	}
+
+	/** Parse the sensor list of a bulk request.
+	 * @param req Servlet request object.
+	 * @return Array of sensor IDs, or null if invalid or missing. */
+	static private String[] parseSensors(HttpServletRequest req) {
+		String p = req.getParameter(SENSORS_PARAM);
+		if (p == null)
+			return null;
+		String[] sensors = p.trim().split("[,\\s]+");
+		if (sensors.length > MAX_BULK_SENSORS)
+			return null;
+		for (String sid: sensors) {
+			if (!isValidSensorId(sid))
+				return null;
+		}
+		return sensors;
+	}
+
+	/** Parse the rollup period of a sample request.
+	 * @param req Servlet request object.
+	 * @param name Sample file name.
+	 * @return Rollup period (seconds), 0 for no rollup, or -1 if the
+	 *         period is not valid for the sample file. */
+	static private int parsePeriod(HttpServletRequest req, String name) {
+		String p = req.getParameter(PERIOD_PARAM);
+		if (p == null)
+			return 0;
+		try {
+			int period = Integer.parseInt(p);
+			return (period > 0 &&
+			        SensorArchive.isValidRollup(name, period))
+			      ? period
+			      : -1;
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Parse the time window of a sample request.
+	 * @param req Servlet request object.
+	 * @return Time window, or null if the window is not valid. */
+	static private TimeWindow parseWindow(HttpServletRequest req) {
+		return TimeWindow.parse(req.getParameter(START_PARAM),
+			req.getParameter(END_PARAM));
+	}
+
 	/** Strip the .json extension from a file name */
 	static private String stripJsonExt(String name) {
 		assert name.endsWith(".json");
 		return name.substring(0, name.length() - 5);
 	}
 
+	/** Check if a request accepts gzip content encoding.
+	 * @param req Servlet request.
+	 * @return true if gzip encoding is acceptable. */
+	static private boolean acceptsGzip(HttpServletRequest req) {
+		String ae = req.getHeader("Accept-Encoding");
+		if (ae != null) {
+			for (String enc: ae.split(",")) {
+				String[] e = enc.trim().split(";");
+				if (isGzip(e[0].trim()) && !isQZero(e))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** Check if a content coding is gzip */
+	static private boolean isGzip(String c) {
+		return "gzip".equalsIgnoreCase(c) ||
+		       "x-gzip".equalsIgnoreCase(c);
+	}
+
+	/** Check if a content coding has a quality value of zero.
+	 * @param e Content coding and parameters.
+	 * @return true if quality value is zero. */
+	static private boolean isQZero(String[] e) {
+		for (int i = 1; i < e.length; i++) {
+			String prm = e[i].trim();
+			if (prm.startsWith("q=")) {
+				try {
+					return Float.parseFloat(
+						prm.substring(2)) == 0;
+				}
+				catch (NumberFormatException ex) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Check if a request is not modified, and set cache headers.  If the
+	 * request is not modified, the response status is set to 304.
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object.
+	 * @param cv Cache validator of requested data.
+	 * @param variant Representation variant of response.
+	 * @return true if request is not modified. */
+	static private boolean checkNotModified(HttpServletRequest req,
+		HttpServletResponse resp, CacheValidator cv, String variant)
+	{
+		String etag = cv.getETag(variant);
+		long mtime = cv.getModified();
+		resp.setHeader("ETag", etag);
+		resp.setDateHeader("Last-Modified", mtime);
+		resp.setHeader("Cache-Control", cv.isArchived()
+			? CACHE_ARCHIVED : CACHE_LIVE);
+		String inm = req.getHeader("If-None-Match");
+		boolean not_mod = (inm != null)
+		                ? matchesETag(inm, etag)
+		                : isModifiedBefore(req, mtime);
+		if (not_mod)
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		return not_mod;
+	}
+
+	/** Check if an If-None-Match header matches an entity tag.
+	 * @param inm Value of If-None-Match header.
+	 * @param etag Quoted entity tag.
+	 * @return true if the header matches. */
+	static private boolean matchesETag(String inm, String etag) {
+		for (String t: inm.split(",")) {
+			t = t.trim();
+			if (t.startsWith("W/"))
+				t = t.substring(2);
+			if (t.equals("*") || t.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/** Check if data was modified before the If-Modified-Since time.
+	 * @param req Servlet request object.
+	 * @param mtime Last modified time of data.
+	 * @return true if data was not modified since the header time. */
+	static private boolean isModifiedBefore(HttpServletRequest req,
+		long mtime)
+	{
+		try {
+			long ims = req.getDateHeader("If-Modified-Since");
+			// HTTP dates have a resolution of one second
+			return ims >= 0 && mtime / 1000 <= ims / 1000;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/** Get the representation variant for a rollup period.  A speed
+	 * rollup also depends on the volume data weighting it.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @return Variant string. */
+	static private String rollupVariant(SensorArchive sa, String date,
+		String name, int period) throws IOException
+	{
+		return (period > 0)
+		      ? "p" + period + "v" + SensorArchive.getRollupMinValid()
+		        + sa.rollupWeightTag(date, name)
+		      : "";
+	}
+
+	/** Output stream which counts bytes sent for metrics */
+	static private class MeteredOutputStream extends FilterOutputStream {
+
+		/** Create a new metered output stream */
+		private MeteredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		/** Write one byte */
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			Metrics.addBytes(1);
+		}
+
+		/** Write an array of bytes */
+		@Override
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			out.write(b, off, len);
+			Metrics.addBytes(len);
+		}
+	}
+
+	/** Get the output stream for a response, counting bytes sent.
+	 * @param resp Servlet response.
+	 * @return Output stream for the response. */
+	static private OutputStream responseStream(HttpServletResponse resp)
+		throws IOException
+	{
+		return new MeteredOutputStream(resp.getOutputStream());
+	}
+
 	/** Create a buffered writer for the response.
 	 * @param resp Servlet response.
 	 * @return Buffered writer for the response. */
-	static private Writer createWriter(HttpServletResponse resp)
+	static private AsciiWriter createWriter(HttpServletResponse resp)
 		throws IOException
 	{
-		OutputStream os = resp.getOutputStream();
-		OutputStreamWriter osw = new OutputStreamWriter(os);
-		return new BufferedWriter(osw);
+		return new AsciiWriter(responseStream(resp));
 	}
 
 	/** Send raw data from the given input stream to the response.
@@ -93,7 +437,7 @@ public class TrafdatServlet extends HttpServlet {
 		InputStream in) throws IOException
 	{
 		byte[] buf = new byte[4096];
-		OutputStream out = resp.getOutputStream();
+		OutputStream out = responseStream(resp);
 		try {
 			while (true) {
 				int n_bytes = in.read(buf);
@@ -107,6 +451,66 @@ public class TrafdatServlet extends HttpServlet {
 		}
 	}
 
+	/** Send samples to the response as 16-bit big-endian values.  A
+	 * sample which does not fit in 16 bits (such as a sum of c30 scans
+	 * over a long period) is sent as missing, rather than wrapped.
+	 * @param resp Servlet response object.
+	 * @param samples Sample data to send. */
+	static private void sendShortData(HttpServletResponse resp,
+		int[] samples) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(
+			new BufferedOutputStream(responseStream(resp)));
+		try {
+			for (int s: samples) {
+				dos.writeShort((s <= Short.MAX_VALUE)
+					? s
+					: SampleData.MISSING_DATA);
+			}
+			dos.flush();
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	/** Send a regular file to the response.  The file is sent by the
+	 * container if it supports sendfile, otherwise it is copied through
+	 * a buffer like any other raw data.
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object.
+	 * @param file File to send. */
+	static private void sendFileData(HttpServletRequest req,
+		HttpServletResponse resp, File file) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fc = fis.getChannel();
+			long len = fc.size();
+			resp.setHeader("Content-Length", Long.toString(len));
+			if (Boolean.TRUE.equals(req.getAttribute(SENDFILE)))
+				setSendFile(req, file, len);
+			else
+				sendRawData(resp, fis);
+		}
+		finally {
+			fis.close();
+		}
+	}
+
+	/** Request the container to send a file with sendfile.
+	 * @param req Servlet request object.
+	 * @param file File to send.
+	 * @param len Length of file. */
+	static private void setSendFile(HttpServletRequest req, File file,
+		long len) throws IOException
+	{
+		req.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+		req.setAttribute(SENDFILE_START, Long.valueOf(0));
+		req.setAttribute(SENDFILE_END, Long.valueOf(len));
+		Metrics.addBytes(len);
+	}
+
 	/** Send text data from the given iterator to the response.
 	 * @param resp Servlet response object.
 	 * @param it Iterator of values to send. */
@@ -114,12 +518,9 @@ public class TrafdatServlet extends HttpServlet {
 		Iterator<String> it) throws IOException
 	{
 		resp.setContentType("text/plain");
-		Writer w = createWriter(resp);
+		AsciiWriter w = createWriter(resp);
 		try {
-			while (it.hasNext()) {
-				String val = it.next();
-				w.write(val + "\n");
-			}
+			w.writeLines(it);
 			w.flush();
 		}
 		finally {
@@ -134,18 +535,60 @@ public class TrafdatServlet extends HttpServlet {
 		Iterator<String> it) throws IOException
 	{
 		resp.setContentType("application/json");
-		Writer w = createWriter(resp);
+		AsciiWriter w = createWriter(resp);
 		try {
-			w.write('[');
+			w.writeJsonArray(it);
+			w.flush();
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	/** Send sample data to the response as JSON.
+	 * @param resp Servlet response object.
+	 * @param samples Sample data (negative for missing). */
+	static private void sendJsonData(HttpServletResponse resp,
+		int[] samples) throws IOException
+	{
+		resp.setContentType("application/json");
+		AsciiWriter w = createWriter(resp);
+		try {
+			w.writeJsonArray(samples);
+			w.flush();
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	/** Send sample data for several sensors to the response as a JSON
+	 * object, with one array per sensor.  Each sensor is read and written
+	 * in turn, so only one sensor's samples are in memory at a time.
+	 * @param resp Servlet response object.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param ext Sample file extension.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @param sensors Sensor IDs. */
+	static private void sendBulkJsonData(HttpServletResponse resp,
+		SensorArchive sa, String date, String ext, int period,
+		String[] sensors) throws IOException
+	{
+		resp.setContentType("application/json");
+		AsciiWriter w = createWriter(resp);
+		try {
+			w.write('{');
 			boolean first = true;
-			while (it.hasNext()) {
-				String val = formatJson(it.next());
+			for (String sid: sensors) {
 				if (!first)
 					w.write(',');
-				w.write(val);
+				w.writeJsonKey(sid);
+				writeJsonSamples(w, sa, date, sid + ext,
+					period);
 				first = false;
 			}
-			w.write(']');
+			w.write('}');
 			w.flush();
 		}
 		finally {
@@ -153,25 +596,307 @@ public class TrafdatServlet extends HttpServlet {
 		}
 	}
 
-	/** Format a number as a JSON value.
-	 * @param val Value to format.
-	 * @return JSON value. */
-	static private String formatJson(String val) {
-		return (val != null) ? val : "null";
+	/** Send sample data for a range of dates to the response as a JSON
+	 * object, with one array per date.  Dates are written in order as
+	 * they are read; a missing date is written as an array of nulls.
+	 * @param resp Servlet response object.
+	 * @param range Sample range to send.
+	 * @param n_samples Number of samples per day. */
+	static private void sendRangeJsonData(HttpServletResponse resp,
+		SampleRange range, int n_samples) throws IOException
+	{
+		resp.setContentType("application/json");
+		AsciiWriter w = createWriter(resp);
+		try {
+			w.write('{');
+			boolean first = true;
+			while (range.hasNext()) {
+				if (!first)
+					w.write(',');
+				w.writeJsonKey(range.nextDate());
+				int[] samples = range.next();
+				if (samples != null)
+					w.writeJsonArray(samples);
+				else
+					w.writeJsonNulls(n_samples);
+				first = false;
+			}
+			w.write('}');
+			w.flush();
+		}
+		finally {
+			range.cancel();
+			w.close();
+		}
+	}
+
+	/** Write sample data for one sensor as a JSON array.
+	 * @param w Writer to write JSON.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup. */
+	static private void writeJsonSamples(AsciiWriter w, SensorArchive sa,
+		String date, String name, int period) throws IOException
+	{
+		int[] samples;
+		try {
+			samples = sa.sampleArray(date, name, period);
+		}
+		catch (FileNotFoundException e) {
+			w.write("null");
+			return;
+		}
+		w.writeJsonArray(samples);
+	}
+
+	/** Executor for reading date range requests */
+	private ExecutorService range_executor;
+
+	/** Executor for building sensor date indexes */
+	private ScheduledExecutorService index_executor;
+
+	/** Executor for archive I/O of interactive requests */
+	private ExecutorService io_executor;
+
+	/** Executor for archive I/O of bulk requests */
+	private ExecutorService bulk_executor;
+
+	/** Create a bounded executor.  When all threads are busy and the
+	 * queue is full, tasks are rejected.
+	 * @param threads Number of threads.
+	 * @param queue Maximum number of queued tasks.
+	 * @return Bounded executor. */
+	static private ExecutorService createBoundedExecutor(int threads,
+		int queue)
+	{
+		return new ThreadPoolExecutor(threads, threads, 0,
+			TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queue));
+	}
+
+	/** Get a positive integer init parameter.
+	 * @param config Servlet configuration.
+	 * @param name Parameter name.
+	 * @param def Default value.
+	 * @return Parameter value. */
+	static private int getIntParam(ServletConfig config, String name,
+		int def) throws ServletException
+	{
+		String v = config.getInitParameter(name);
+		if (v == null)
+			return def;
+		try {
+			int i = Integer.parseInt(v.trim());
+			if (i > 0)
+				return i;
+		}
+		catch (NumberFormatException e) {
+			// Fall through to exception, below
+		}
+		throw new ServletException("Invalid " + name + ": " + v);
 	}
 
 	/** Initialize the servlet */
 	@Override
 	public void init(ServletConfig config) throws ServletException {
-		// Nothing to initialize
+		String bp = config.getInitParameter(BASE_PATH_PARAM);
+		if (bp != null)
+			SensorArchive.setBasePath(bp);
+		String ip = config.getInitParameter(INDEX_PATH_PARAM);
+		if (ip != null)
+			SensorArchive.setIndexBasePath(ip);
+		io_executor = createBoundedExecutor(
+			getIntParam(config, IO_THREADS_PARAM,
+				DEFAULT_IO_THREADS),
+			getIntParam(config, IO_QUEUE_PARAM,
+				DEFAULT_IO_QUEUE));
+		bulk_executor = createBoundedExecutor(
+			getIntParam(config, BULK_THREADS_PARAM,
+				DEFAULT_BULK_THREADS),
+			getIntParam(config, BULK_QUEUE_PARAM,
+				DEFAULT_BULK_QUEUE));
+		range_executor = Executors.newFixedThreadPool(RANGE_THREADS);
+		index_executor = Executors.newSingleThreadScheduledExecutor();
+		index_executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				buildSensorDates();
+			}
+		}, 0, SENSOR_DATES_RESCAN_SEC, TimeUnit.SECONDS);
+		String mv = config.getInitParameter(MIN_VALID_PARAM);
+		if (mv != null) {
+			try {
+				SensorArchive.setRollupMinValid(
+					Float.parseFloat(mv));
+			}
+			catch (NumberFormatException e) {
+				throw new ServletException("Invalid " +
+					MIN_VALID_PARAM + ": " + mv);
+			}
+		}
+		String lb = config.getInitParameter(LENGTH_PARAM);
+		if (lb != null) {
+			try {
+				LengthClass.setBounds(parseInts(lb));
+			}
+			catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid " +
+					LENGTH_PARAM + ": " + lb);
+			}
+		}
+	}
+
+	/** Parse a comma-separated list of integers.
+	 * @param v List of integers.
+	 * @return Array of integers.
+	 * @throws NumberFormatException if any value is not an integer. */
+	static private int[] parseInts(String v) {
+		String[] vals = v.split(",");
+		int[] ints = new int[vals.length];
+		for (int i = 0; i < vals.length; i++)
+			ints[i] = Integer.parseInt(vals[i].trim());
+		return ints;
+	}
+
+	/** Build the sensor date indexes of all districts.  Exceptions (and
+	 * InternalError from a truncated mapped file) are caught, since any
+	 * exception would cancel later scheduled scans. */
+	static private void buildSensorDates() {
+		try {
+			Iterator<String> it = new SensorArchive()
+				.lookupDistricts();
+			while (it.hasNext())
+				buildSensorDates(it.next());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Build the sensor date index of one district.
+	 * @param dist District ID. */
+	static private void buildSensorDates(String dist) {
+		try {
+			new SensorArchive(dist).updateSensorDates();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		catch (InternalError e) {
+			e.printStackTrace();
+		}
 	}
 
-	/** Process an HTTP GET request */
+	/** Destroy the servlet */
+	@Override
+	public void destroy() {
+		io_executor.shutdownNow();
+		bulk_executor.shutdownNow();
+		index_executor.shutdownNow();
+		range_executor.shutdownNow();
+		SensorArchive.stopWatching();
+		SensorArchive.evictTrafficFiles();
+	}
+
+	/** Process an HTTP POST request (bulk requests with the sensor list
+	 * in a form body) */
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) {
+		doGet(req, resp);
+	}
+
+	/** Process an HTTP GET request.  Archive I/O is done on a bounded
+	 * executor, with the response sent asynchronously.  If the executor
+	 * is saturated, the request is rejected with a 503 status. */
 	@Override
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) {
-		String path = req.getPathInfo();
+		final long start = System.nanoTime();
+		final String path = req.getPathInfo();
+		if (!req.isAsyncSupported() || isMetricsPath(path)) {
+			Metrics.begin(start);
+			try {
+				processGet(path, req, resp);
+			}
+			finally {
+				Metrics.end(resp.getStatus());
+			}
+			return;
+		}
+		final HttpServletRequest areq = req;
+		AsyncContext ac = req.startAsync();
+		ac.setTimeout(ASYNC_TIMEOUT_MS);
+		final AsyncResponse aresp = new AsyncResponse(ac);
 		try {
-			if (!processReq(path, resp)) {
+			getExecutor(path).execute(new Runnable() {
+				public void run() {
+					Metrics.begin(start);
+					try {
+						processGet(path, areq, aresp);
+					}
+					finally {
+						aresp.finish(Metrics.detach());
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			Metrics.rejected();
+			resp.setHeader("Retry-After", RETRY_AFTER);
+			sendError(resp,
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			aresp.finish(null);
+		}
+	}
+
+	/** Get the executor for a request.
+	 * @param path Path of requested resource.
+	 * @return Bulk executor for bulk, range or sensor date requests;
+	 *         I/O executor for all others. */
+	private ExecutorService getExecutor(String path) {
+		return isBulkPath(path) ? bulk_executor : io_executor;
+	}
+
+	/** Check if a request path is for bulk data.
+	 * @param path Path of requested resource.
+	 * @return true if request is for bulk, range or sensor dates. */
+	static private boolean isBulkPath(String path) {
+		String[] p = splitPath(path);
+		switch (p.length) {
+		case 3:
+			return RANGE_PATH.equals(p[1]) ||
+			       DATES_PATH.equals(p[1]) ||
+			       isBulkName(p[2]);
+		case 4:
+			return isBulkName(p[3]);
+		default:
+			return false;
+		}
+	}
+
+	/** Check if a request path is for metrics.  Metrics are only read
+	 * from memory, so they are served even when executors are saturated.
+	 * @param path Path of requested resource.
+	 * @return true if request is for metrics. */
+	static private boolean isMetricsPath(String path) {
+		String[] p = splitPath(path);
+		return p.length == 1 && METRICS_PATH.equals(p[0]);
+	}
+
+	/** Process an HTTP GET request on the current thread.
+	 * @param path Path of requested resource.
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object. */
+	private void processGet(String path, HttpServletRequest req,
+		HttpServletResponse resp)
+	{
+		try {
+			if (!processReq(path, req, resp)) {
 				sendError(resp,
 					HttpServletResponse.SC_BAD_REQUEST);
 			}
@@ -184,12 +909,28 @@ public class TrafdatServlet extends HttpServlet {
 			sendError(resp,
 				HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		}
+		catch (RuntimeException e) {
+			// Don't let the executor thread die, or the async
+			// request complete as an empty 200
+			e.printStackTrace();
+			sendError(resp,
+				HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+		catch (InternalError e) {
+			// Mapped archive file was truncated while reading
+			e.printStackTrace();
+			sendError(resp,
+				HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
 	}
 
-	/** Send an HTTP error code.
+	/** Send an HTTP error code, unless the response is already
+	 * committed.
 	 * @param resp Servlet response object.
 	 * @param ec HTTP error code. */
 	private void sendError(HttpServletResponse resp, int ec) {
+		if (resp.isCommitted())
+			return;
 		try {
 			resp.sendError(ec);
 		}
@@ -200,10 +941,11 @@ public class TrafdatServlet extends HttpServlet {
 
 	/** Process a traffic data request from a client.
 	 * @param path Path of requested resource.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
-	private boolean processReq(String path, HttpServletResponse resp)
-		throws IOException
+	private boolean processReq(String path, HttpServletRequest req,
+		HttpServletResponse resp) throws IOException
 	{
 		String[] p = splitPath(path);
 		switch (p.length) {
@@ -212,9 +954,9 @@ public class TrafdatServlet extends HttpServlet {
 		case 2:
 			return processReq2(p, resp);
 		case 3:
-			return processReq3(p, resp);
+			return processReq3(p, req, resp);
 		case 4:
-			return processReq4(p, resp);
+			return processReq4(p, req, resp);
 		default:
 			return false;
 		}
@@ -229,6 +971,7 @@ public class TrafdatServlet extends HttpServlet {
 	{
 		assert p.length == 1;
 		return processDocReq(p[0], resp)
+		    || processMetricsReq(p[0], resp)
 		    || processDistReq(p[0], resp)
 		    || processTextDateReq(DEFAULT_DIST, p[0], resp);
 	}
@@ -240,6 +983,7 @@ public class TrafdatServlet extends HttpServlet {
 		throws IOException
 	{
 		if ("".equals(d)) {
+			Metrics.setRoute(Metrics.Route.docs);
 			resp.setContentType("text/html");
 			sendRawData(resp, SensorArchive.docInputStream());
 			return true;
@@ -247,6 +991,29 @@ public class TrafdatServlet extends HttpServlet {
 			return false;
 	}
 
+	/** Process a request for metrics.
+	 * @param m Metrics path.
+	 * @param resp Servlet response object.
+	 * @return true if request if valid, otherwise false */
+	private boolean processMetricsReq(String m, HttpServletResponse resp)
+		throws IOException
+	{
+		if (METRICS_PATH.equals(m)) {
+			Metrics.setRoute(Metrics.Route.metrics);
+			resp.setContentType(METRICS_TYPE);
+			resp.setHeader("Cache-Control", "no-cache");
+			AsciiWriter w = createWriter(resp);
+			try {
+				Metrics.write(w);
+			}
+			finally {
+				w.close();
+			}
+			return true;
+		} else
+			return false;
+	}
+
 	/** Process a request for the available districts.
 	 * @param districts District path.
 	 * @param resp Servlet response object.
@@ -257,6 +1024,7 @@ public class TrafdatServlet extends HttpServlet {
 		if ("districts".equals(districts)) {
 			SensorArchive sa = new SensorArchive();
 			if (sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.districts);
 				sendJsonData(resp, sa.lookupDistricts());
 				return true;
 			}
@@ -289,6 +1057,7 @@ public class TrafdatServlet extends HttpServlet {
 		if (SensorArchive.isValidDate(date)) {
 			SensorArchive sa = new SensorArchive(dist);
 			if (sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.sensors);
 				sendJsonData(resp, sa.lookup(date));
 				return true;
 			}
@@ -309,6 +1078,7 @@ public class TrafdatServlet extends HttpServlet {
 			if (SensorArchive.isValidYear(year)) {
 				SensorArchive sa = new SensorArchive(dist);
 				if (sa.isValid()) {
+					Metrics.setRoute(Metrics.Route.dates);
 					sendJsonData(resp,sa.lookupDates(year));
 					return true;
 				}
@@ -328,6 +1098,7 @@ public class TrafdatServlet extends HttpServlet {
 		if (SensorArchive.isValidYear(year)) {
 			SensorArchive sa = new SensorArchive(dist);
 			if (sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.dates);
 				sendTextData(resp, sa.lookupDates(year));
 				return true;
 			}
@@ -337,15 +1108,49 @@ public class TrafdatServlet extends HttpServlet {
 
 	/** Process a request with 3 path parts.
 	 * @param p Path array.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
-	private boolean processReq3(String[] p, HttpServletResponse resp)
-		throws IOException
+	private boolean processReq3(String[] p, HttpServletRequest req,
+		HttpServletResponse resp) throws IOException
 	{
 		assert p.length == 3;
-		return processSensorReq(p[0], p[1], p[2], resp)
-		    || processSampleReq(p[0], p[1], p[2], resp)
-		    || processSampleReq(DEFAULT_DIST, p[0], p[1], p[2], resp);
+		return processRangeReq(p[0], p[1], p[2], req, resp)
+		    || processSensorDatesReq(p[0], p[1], p[2], resp)
+		    || processSensorReq(p[0], p[1], p[2], resp)
+		    || processSampleReq(p[0], p[1], p[2], req, resp)
+		    || processSampleReq(DEFAULT_DIST, p[0], p[1], p[2], req,
+		                        resp);
+	}
+
+	/** Process a request for the dates a sensor has data.
+	 * @param dist District ID.
+	 * @param dates Dates path component.
+	 * @param sj Sensor ID + .json extension.
+	 * @param resp Servlet response object.
+	 * @return true if request if valid, otherwise false */
+	private boolean processSensorDatesReq(String dist, String dates,
+		String sj, HttpServletResponse resp) throws IOException
+	{
+		if (DATES_PATH.equals(dates) && isJsonFile(sj)) {
+			String sid = stripJsonExt(sj);
+			SensorArchive sa = new SensorArchive(dist);
+			if (isValidSensorId(sid) && sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.sensor_dates);
+				Iterator<String> it = sa.lookupSensorDates(sid);
+				if (it != null)
+					sendJsonData(resp, it);
+				else {
+					// Not indexed yet; don't claim no data
+					resp.setHeader("Retry-After",
+						INDEX_RETRY_AFTER);
+					sendError(resp, HttpServletResponse
+						.SC_SERVICE_UNAVAILABLE);
+				}
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/** Process a sensor list request.
@@ -363,13 +1168,14 @@ public class TrafdatServlet extends HttpServlet {
 
 	/** Process a request with 4 path parts.
 	 * @param p Path array.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
-	private boolean processReq4(String[] p, HttpServletResponse resp)
-		throws IOException
+	private boolean processReq4(String[] p, HttpServletRequest req,
+		HttpServletResponse resp) throws IOException
 	{
 		assert p.length == 4;
-		return processSampleReq(p[0], p[1], p[2], p[3], resp);
+		return processSampleReq(p[0], p[1], p[2], p[3], req, resp);
 	}
 
 	/** Process a sample data request.
@@ -377,67 +1183,268 @@ public class TrafdatServlet extends HttpServlet {
 	 * @param year String year (4 digits, yyyy).
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
 	private boolean processSampleReq(String dist, String year,
-		String date, String name, HttpServletResponse resp)
-		throws IOException
+		String date, String name, HttpServletRequest req,
+		HttpServletResponse resp) throws IOException
 	{
 		return SensorArchive.isValidYearDate(year, date)
-		    && processSampleReq(dist, date, name, resp);
+		    && processSampleReq(dist, date, name, req, resp);
 	}
 
 	/** Process a sample data request.
 	 * @param dist District ID.
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
 	private boolean processSampleReq(String dist, String date,
-		String name, HttpServletResponse resp) throws IOException
+		String name, HttpServletRequest req, HttpServletResponse resp)
+		throws IOException
 	{
 		if (!SensorArchive.isValidDate(date))
 			return false;
 		if (!isFileNameValid(name))
 			return false;
 		if (isJsonFile(name)) {
-			return processJsonReq(dist, date, stripJsonExt(name),
-				resp);
+			name = stripJsonExt(name);
+			if (isBulkReq(name, req))
+				return processBulkReq(dist, date, name, req,
+					resp);
+			return processJsonReq(dist, date, name, req, resp);
 		} else if (SensorArchive.isValidSampleFile(name)) {
-			resp.setContentType("application/octet-stream");
+			int period = parsePeriod(req, name);
+			TimeWindow w = parseWindow(req);
 			SensorArchive sa = new SensorArchive(dist);
-			if (sa.isValid()) {
-				InputStream in = sa.sampleInputStream(date,
-					name);
-				try {
-					sendRawData(resp, in);
-				}
-				finally {
-					in.close();
-				}
+			if (period >= 0 && w != null && sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.raw);
+				processRawReq(sa, date, name, period, w, req,
+					resp);
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/** Process a raw sample data request.  If the client accepts gzip
+	 * encoding, deflated data is sent from the .traffic file as-is.
+	 * Rolled-up data is sent as 16-bit big-endian values.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @param w Time window.
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object. */
+	private void processRawReq(SensorArchive sa, String date, String name,
+		int period, TimeWindow w, HttpServletRequest req,
+		HttpServletResponse resp) throws IOException
+	{
+		resp.setContentType("application/octet-stream");
+		resp.setHeader("Vary", "Accept-Encoding");
+		boolean gzip = (period == 0) && w.isWholeDay() &&
+			acceptsGzip(req);
+		// Resolve the gzip stream first, so the ETag variant matches
+		// the representation which is actually sent
+		InputStream in = gzip ? sa.gzipInputStream(date, name) : null;
+		CacheValidator cv = sa.sampleValidator(date, name);
+		if (cv != null) {
+			String v = (in != null)
+			         ? "gz"
+			         : rollupVariant(sa, date, name, period) +
+			           w.getVariant();
+			if (checkNotModified(req, resp, cv, v)) {
+				if (in != null)
+					in.close();
+				return;
+			}
+		}
+		if (!w.isWholeDay()) {
+			sendWindowData(sa, date, name, period, w, resp);
+			return;
+		}
+		if (period > 0) {
+			sendShortData(resp, sa.rollupArray(date, name, period));
+			return;
+		}
+		if (in != null)
+			resp.setHeader("Content-Encoding", "gzip");
+		else {
+			File file = sa.sampleFile(date, name);
+			if (file != null) {
+				sendFileData(req, resp, file);
+				return;
+			}
+			in = sa.sampleInputStream(date, name);
+		}
+		try {
+			sendRawData(resp, in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/** Send the data in a time window.  Binned samples which start
+	 * within the window are sent; .vlog events are located with the time
+	 * index of the log.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @param w Time window.
+	 * @param resp Servlet response object. */
+	private void sendWindowData(SensorArchive sa, String date,
+		String name, int period, TimeWindow w, HttpServletResponse resp)
+		throws IOException
+	{
+		if (SensorArchive.isBinnedFile(name)) {
+			int[] samples = sampleWindow(sa, date, name, period, w);
+			if (period > 0)
+				sendShortData(resp, samples);
+			else {
+				byte[] data = SampleFormat.lookup(name)
+					.encode(samples);
+				sendRawData(resp, new ByteArrayInputStream(data));
+			}
+		} else {
+			InputStream in = sa.vlogInputStream(date, name, w);
+			try {
+				sendRawData(resp, in);
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	/** Get the samples in a time window.
+	 * @param sa Sensor archive.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Sample file name.
+	 * @param period Rollup period (seconds), or 0 for no rollup.
+	 * @param w Time window.
+	 * @return Array of samples in the window. */
+	static private int[] sampleWindow(SensorArchive sa, String date,
+		String name, int period, TimeWindow w) throws IOException
+	{
+		int[] samples = sa.sampleArray(date, name, period);
+		int p = (period > 0) ? period : SensorArchive.samplePeriod(name);
+		return w.slice(samples, p);
+	}
+
 	/** Process a JSON data request.
 	 * @param dist District ID.
 	 * @param date String date (8 digits yyyyMMdd).
 	 * @param name Sample file name.
+	 * @param req Servlet request object.
 	 * @param resp Servlet response object.
 	 * @return true if request if valid, otherwise false */
 	private boolean processJsonReq(String dist, String date,
-		String name, HttpServletResponse resp) throws IOException
+		String name, HttpServletRequest req, HttpServletResponse resp)
+		throws IOException
 	{
 		if (SensorArchive.isBinnedFile(name)) {
+			int period = parsePeriod(req, name);
+			TimeWindow w = parseWindow(req);
 			SensorArchive sa = new SensorArchive(dist);
-			if (sa.isValid()) {
-				sendJsonData(resp, sa.sampleIterator(date,
-					name));
+			if (period >= 0 && w != null && sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.json);
+				CacheValidator cv = sa.sampleValidator(date,
+					name);
+				String v = rollupVariant(sa, date, name,
+					period) + w.getVariant();
+				if (cv == null || !checkNotModified(req, resp,
+				    cv, v))
+				{
+					sendJsonData(resp, sampleWindow(sa,
+						date, name, period, w));
+				}
 				return true;
 			}
 		}
 		return false;
 	}
+
+	/** Check if a request is for bulk sample data.
+	 * @param name Sample file name (without .json extension).
+	 * @param req Servlet request object.
+	 * @return true if request is for bulk data. */
+	private boolean isBulkReq(String name, HttpServletRequest req) {
+		return isBulkName(name) &&
+		       req.getParameter(SENSORS_PARAM) != null;
+	}
+
+	/** Check if a file name is for bulk sample data.
+	 * @param name Sample file name (with or without .json extension).
+	 * @return true if name is for bulk data. */
+	static private boolean isBulkName(String name) {
+		return name.startsWith(BULK_PREFIX + '.');
+	}
+
+	/** Process a bulk JSON data request.
+	 * @param dist District ID.
+	 * @param date String date (8 digits yyyyMMdd).
+	 * @param name Bulk file name (bulk.ext).
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object.
+	 * @return true if request if valid, otherwise false */
+	private boolean processBulkReq(String dist, String date, String name,
+		HttpServletRequest req, HttpServletResponse resp)
+		throws IOException
+	{
+		if (SensorArchive.isBinnedFile(name)) {
+			String ext = name.substring(BULK_PREFIX.length());
+			String[] sensors = parseSensors(req);
+			int period = parsePeriod(req, name);
+			SensorArchive sa = new SensorArchive(dist);
+			if (sensors != null && period >= 0 && sa.isValid()) {
+				Metrics.setRoute(Metrics.Route.bulk);
+				sendBulkJsonData(resp, sa, date, ext, period,
+					sensors);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Process a date range request.
+	 * @param dist District ID.
+	 * @param r Range path component.
+	 * @param name Sample file name (with .json extension).
+	 * @param req Servlet request object.
+	 * @param resp Servlet response object.
+	 * @return true if request if valid, otherwise false */
+	private boolean processRangeReq(String dist, String r, String name,
+		HttpServletRequest req, HttpServletResponse resp)
+		throws IOException
+	{
+		if (!RANGE_PATH.equals(r) || !isJsonFile(name))
+			return false;
+		name = stripJsonExt(name);
+		if (!isFileNameValid(name) || !SensorArchive.isBinnedFile(name))
+			return false;
+		String from = req.getParameter(FROM_PARAM);
+		String to = req.getParameter(TO_PARAM);
+		if (from == null || to == null)
+			return false;
+		ArrayList<String> dates = SampleRange.dates(from, to,
+			MAX_RANGE_DAYS);
+		int period = parsePeriod(req, name);
+		SensorArchive sa = new SensorArchive(dist);
+		if (dates != null && period >= 0 && sa.isValid()) {
+			Metrics.setRoute(Metrics.Route.range);
+			SampleRange range = new SampleRange(range_executor, sa,
+				name, period, dates, RANGE_WINDOW);
+			int n_samples = (period > 0)
+			              ? SampleFormat.SECONDS_PER_DAY / period
+			              : SensorArchive.samplesPerDay(name);
+			sendRangeJsonData(resp, range, n_samples);
+			return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,202 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Sparse time index of a vehicle event log.  For each minute of the day,
+ * the index records the range of log offsets containing events stamped
+ * within that minute.  The index is built while the log is binned, and is
+ * cached in memory and in a sidecar file, like derived bins.  It is tagged
+ * with a cache validator of the log, so it is rebuilt whenever the log is
+ * modified.
+ *
+ * @author Douglas Lau
+ */
+public class VLogIndex {
+
+	/** Index interval (seconds) */
+	static private final int INTERVAL = 60;
+
+	/** Number of intervals per day */
+	static private final int N_INTERVALS =
+		SampleFormat.SECONDS_PER_DAY / INTERVAL;
+
+	/** Magic number for vlog index files ("VIDX") */
+	static private final int MAGIC = 0x56494458;
+
+	/** Version of index file format */
+	static private final int VERSION = 1;
+
+	/** Maximum number of indexes cached in memory */
+	static private final int MAX_CACHED = 1024;
+
+	/** Cache of recently used indexes */
+	static private final SidecarCache<String, VLogIndex> CACHE =
+		new SidecarCache<String, VLogIndex>(MAX_CACHED)
+	{
+		protected VLogIndex read(DataInputStream dis)
+			throws IOException
+		{
+			return VLogIndex.read(dis);
+		}
+		protected void write(VLogIndex v, DataOutputStream dos)
+			throws IOException
+		{
+			v.write(dos);
+		}
+	};
+
+	/** Lookup a cached index.  The index is read from the sidecar file
+	 * if it is not cached in memory.
+	 * @param key Cache key (district / date / sensor).
+	 * @param sidecar Sidecar file.
+	 * @param tag Cache validator tag of the vehicle event log.
+	 * @return Index, or null if not cached or not current. */
+	static public VLogIndex lookup(String key, File sidecar, String tag) {
+		VLogIndex vi = CACHE.get(key);
+		boolean hit = vi != null && vi.tag.equals(tag);
+		Metrics.VLOG_INDEX.record(hit);
+		if (hit)
+			return vi;
+		vi = CACHE.readFile(sidecar);
+		if (vi != null && vi.tag.equals(tag)) {
+			CACHE.put(key, vi);
+			return vi;
+		}
+		return null;
+	}
+
+	/** Read an index from a data input stream */
+	static private VLogIndex read(DataInputStream dis) throws IOException {
+		if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+			return null;
+		VLogIndex vi = new VLogIndex(dis.readUTF());
+		if (dis.readInt() != N_INTERVALS)
+			return null;
+		for (int i = 0; i < N_INTERVALS; i++) {
+			vi.first[i] = dis.readLong();
+			vi.last[i] = dis.readLong();
+		}
+		return vi;
+	}
+
+	/** Build an index of a vehicle event log.
+	 * @param tag Cache validator tag of the vehicle event log.
+	 * @param in Input stream to read .vlog events.
+	 * @return Index of the log. */
+	static public VLogIndex build(String tag, InputStream in)
+		throws IOException
+	{
+		VLogIndex vi = new VLogIndex(tag);
+		new VehicleEventLog(new SampleBin[0], INTERVAL, vi)
+			.binSamples(in);
+		return vi;
+	}
+
+	/** Cache validator tag of the vehicle event log */
+	private final String tag;
+
+	/** Offset of first event line in each interval (-1 if none) */
+	private final long[] first = new long[N_INTERVALS];
+
+	/** End offset of last event line in each interval (-1 if none) */
+	private final long[] last = new long[N_INTERVALS];
+
+	/** Interval of the previous event (-1 if none) */
+	private int prev = -1;
+
+	/** Create a new (empty) index.
+	 * @param t Cache validator tag of the vehicle event log. */
+	public VLogIndex(String t) {
+		tag = t;
+		Arrays.fill(first, -1);
+		Arrays.fill(last, -1);
+	}
+
+	/** Add an event to the index.  Events must be added in log order,
+	 * since the end of each event line is the start of the next.
+	 * @param s Time stamp of event (ms of day), or MISSING.
+	 * @param off Log offset of event line. */
+	public void addEvent(int s, long off) {
+		endPrevious(off);
+		if (s >= 0 && s / 1000 < N_INTERVALS * INTERVAL) {
+			int i = s / 1000 / INTERVAL;
+			if (first[i] < 0)
+				first[i] = off;
+			prev = i;
+		} else
+			prev = -1;
+	}
+
+	/** Record the end offset of the previous event */
+	private void endPrevious(long off) {
+		if (prev >= 0)
+			last[prev] = Math.max(last[prev], off);
+	}
+
+	/** Finish building the index.
+	 * @param len Total length of the log. */
+	public void finish(long len) {
+		endPrevious(len);
+		prev = -1;
+	}
+
+	/** Get the range of log offsets containing all events in a window.
+	 * The window is rounded out to whole index intervals.
+	 * @param w Time window.
+	 * @return Array of start offset (inclusive) and end offset
+	 *         (exclusive); both are 0 if there are no events. */
+	public long[] getRange(TimeWindow w) {
+		int i0 = w.getStart() / INTERVAL;
+		int i1 = Math.min((w.getEnd() + INTERVAL - 1) / INTERVAL,
+			N_INTERVALS);
+		long s = Long.MAX_VALUE;
+		long e = 0;
+		for (int i = i0; i < i1; i++) {
+			if (first[i] >= 0) {
+				s = Math.min(s, first[i]);
+				e = Math.max(e, last[i]);
+			}
+		}
+		return (s < e) ? new long[] { s, e } : new long[] { 0, 0 };
+	}
+
+	/** Store the index in the cache and a sidecar file.
+	 * @param key Cache key (district / date / sensor).
+	 * @param sidecar Sidecar file. */
+	public void store(String key, File sidecar) {
+		CACHE.put(key, this);
+		CACHE.writeFile(sidecar, this);
+	}
+
+	/** Write the index to a data output stream */
+	private void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeUTF(tag);
+		dos.writeInt(N_INTERVALS);
+		for (int i = 0; i < N_INTERVALS; i++) {
+			dos.writeLong(first[i]);
+			dos.writeLong(last[i]);
+		}
+	}
+}
@@ -14,106 +14,261 @@
  */
 package us.mn.state.dot.trafdat;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.io.InputStream;
+import java.util.Arrays;
 
 /**
- * Vehicle event log reader / processor.
+ * Vehicle event log processor.  Events are processed in a single pass,
+ * through a pipeline of three stages:
+ *
+ * 1. Timestamps are propogated forward to following events.
+ * 2. Timestamps are propogated backward to previous events.
+ * 3. Timestamps are interpolated in gaps where they are still missing.
+ *
+ * Each stage only holds the current run of events without timestamps,
+ * which is resolved when the next stamped event arrives.  Events are then
+ * binned into sample periods, and each sample is added to the bins as soon
+ * as its period is complete.  The log offset of each event is carried
+ * through the pipeline, so a time index of the log can be built at the same
+ * time.
  *
  * @author Douglas Lau
  */
 public class VehicleEventLog {
 
-	/** Get the 30-second period for the given timestamp (ms) */
-	static private int getPeriod30Second(int ms) {
-		return ms / 30000;
+	/** Value for missing fields */
+	static private final int MISSING = VehicleEventReader.MISSING;
+
+	/** Get a timestamp for the event previous to an event */
+	static private int getPreviousStamp(int stamp, int headway) {
+		if (stamp == MISSING || headway == MISSING)
+			return MISSING;
+		return stamp - headway + 999;
 	}
 
-	/** List of all vehicle events in the log */
-	private final LinkedList<VehicleEvent> events =
-		new LinkedList<VehicleEvent>();
+	/** A run of events, stored in parallel arrays */
+	static private class EventRun {
+
+		/** Initial capacity of event arrays */
+		static private final int INITIAL_CAPACITY = 64;
+
+		/** Number of events in the run */
+		private int n_events = 0;
+
+		/** Reset flags for all events */
+		private boolean[] reset = new boolean[INITIAL_CAPACITY];
+
+		/** Durations of all events (ms) */
+		private int[] duration = new int[INITIAL_CAPACITY];
+
+		/** Headways of all events (ms) */
+		private int[] headway = new int[INITIAL_CAPACITY];
+
+		/** Time stamps of all events (ms of day) */
+		private int[] stamp = new int[INITIAL_CAPACITY];
+
+		/** Speeds of all events (mph) */
+		private int[] speed = new int[INITIAL_CAPACITY];
+
+		/** Log offsets of all events */
+		private long[] offset = new long[INITIAL_CAPACITY];
 
-	/** Create a new vehicle event log */
-	public VehicleEventLog(BufferedReader reader) throws IOException {
-		String line = reader.readLine();
-		while (line != null) {
-			events.add(new VehicleEvent(line));
-			line = reader.readLine();
+		/** Add an event to the run */
+		private void add(boolean r, int d, int h, int s, int v,
+			long off)
+		{
+			if (n_events == stamp.length)
+				grow();
+			int i = n_events++;
+			reset[i] = r;
+			duration[i] = d;
+			headway[i] = h;
+			stamp[i] = s;
+			speed[i] = v;
+			offset[i] = off;
+		}
+
+		/** Grow the event arrays */
+		private void grow() {
+			int n = n_events * 2;
+			reset = Arrays.copyOf(reset, n);
+			duration = Arrays.copyOf(duration, n);
+			headway = Arrays.copyOf(headway, n);
+			stamp = Arrays.copyOf(stamp, n);
+			speed = Arrays.copyOf(speed, n);
+			offset = Arrays.copyOf(offset, n);
 		}
 	}
 
-	/** Propogate timestamps forward to following events */
-	public void propogateStampsForward() {
-		Integer stamp = null;
-		for (VehicleEvent e: events) {
-			if (stamp != null)
-				e.setPreviousStamp(stamp);
-			stamp = e.getStamp();
+	/** Bins for samples */
+	private final SampleBin[] bins;
+
+	/** Sample period (ms) */
+	private final int period_ms;
+
+	/** Sample data for the current period */
+	private final SampleData sam;
+
+	/** Time index of the log (may be null) */
+	private final VLogIndex index;
+
+	/** Timestamp of previous event, after forward propogation */
+	private int f_stamp = MISSING;
+
+	/** Events without timestamps, waiting for backward propogation */
+	private final EventRun b_run = new EventRun();
+
+	/** Timestamp of previous event, for interpolation */
+	private int i_stamp = MISSING;
+
+	/** Events without timestamps, waiting for interpolation */
+	private final EventRun i_run = new EventRun();
+
+	/** Create a new vehicle event log.
+	 * @param b Bins for samples.
+	 * @param p Sample period (seconds).
+	 * @param vi Time index to build, or null. */
+	public VehicleEventLog(SampleBin[] b, int p, VLogIndex vi) {
+		bins = b;
+		period_ms = p * 1000;
+		sam = new SampleData(p);
+		index = vi;
+	}
+
+	/** Get the sample period for the given timestamp (ms) */
+	private int getPeriod(int ms) {
+		return ms / period_ms;
+	}
+
+	/** Read all events from a .vlog stream and bin them into samples.
+	 * @param in Input stream to read .vlog events. */
+	public void binSamples(InputStream in) throws IOException {
+		VehicleEventReader r = new VehicleEventReader(in);
+		int n_lines = 0;
+		while (r.next()) {
+			n_lines++;
+			propogateForward(r.isReset(), r.getDuration(),
+				r.getHeadway(), r.getStamp(), r.getSpeed(),
+				r.getOffset());
 		}
+		Metrics.VLOG_LINES.add(n_lines);
+		finish(r.getPosition());
 	}
 
-	/** Propogate timestamps backward to previous events */
-	public void propogateStampsBackward() {
-		Integer stamp = null;
-		ListIterator<VehicleEvent> it =
-			events.listIterator(events.size());
-		while (it.hasPrevious()) {
-			VehicleEvent e = it.previous();
-			e.setStamp(stamp);
-			stamp = e.getPreviousStamp();
+	/** Propogate the timestamp of the previous event forward */
+	private void propogateForward(boolean r, int d, int h, int s,
+		int v, long off)
+	{
+		if (f_stamp != MISSING) {
+			if (h != MISSING && s == MISSING)
+				s = f_stamp + h;
+			if (s != MISSING && h == MISSING)
+				h = s - f_stamp;
 		}
+		f_stamp = s;
+		propogateBackward(r, d, h, s, v, off);
 	}
 
-	/** Interpolate timestamps in gaps where they are missing */
-	public void interpolateMissingStamps() {
-		Integer stamp = null;
-		LinkedList<VehicleEvent> ev = new LinkedList<VehicleEvent>();
-		for (VehicleEvent e: events) {
-			Integer s = e.getStamp();
-			if (s == null)
-				ev.add(e);
-			else if (!ev.isEmpty()) {
-				if (stamp != null) {
-					int gap = s - stamp;
-					int t = ev.size() + 1;
-					int headway = Math.round(gap / t);
-					for (VehicleEvent v: ev) {
-						v.setHeadway(headway);
-						v.setPreviousStamp(stamp);
-						stamp = v.getStamp();
-					}
-				}
-				ev.clear();
+	/** Propogate the timestamp of an event backward to the current run
+	 * of events without timestamps. */
+	private void propogateBackward(boolean r, int d, int h, int s,
+		int v, long off)
+	{
+		if (s == MISSING) {
+			b_run.add(r, d, h, s, v, off);
+			return;
+		}
+		int ps = getPreviousStamp(s, h);
+		for (int i = b_run.n_events - 1; i >= 0; i--) {
+			b_run.stamp[i] = ps;
+			ps = getPreviousStamp(ps, b_run.headway[i]);
+		}
+		flushBackward();
+		interpolate(r, d, h, s, v, off);
+	}
+
+	/** Pass the current run of events on to interpolation */
+	private void flushBackward() {
+		for (int i = 0; i < b_run.n_events; i++) {
+			interpolate(b_run.reset[i], b_run.duration[i],
+				b_run.headway[i], b_run.stamp[i],
+				b_run.speed[i], b_run.offset[i]);
+		}
+		b_run.n_events = 0;
+	}
+
+	/** Interpolate timestamps in the current run of events without
+	 * timestamps, ending with an event. */
+	private void interpolate(boolean r, int d, int h, int s, int v,
+		long off)
+	{
+		if (s == MISSING) {
+			i_run.add(r, d, h, s, v, off);
+			return;
+		}
+		if (i_stamp != MISSING && i_run.n_events > 0) {
+			int gap = s - i_stamp;
+			int t = i_run.n_events + 1;
+			int headway = Math.round(gap / t);
+			for (int i = 0; i < i_run.n_events; i++) {
+				if (i_run.headway[i] == MISSING)
+					i_run.headway[i] = headway;
+				i_stamp += i_run.headway[i];
+				i_run.stamp[i] = i_stamp;
 			}
-			if (s != null)
-				stamp = s;
 		}
+		flushInterpolate();
+		i_stamp = s;
+		binEvent(r, d, s, v, off);
+	}
+
+	/** Pass the current run of events on to binning */
+	private void flushInterpolate() {
+		for (int i = 0; i < i_run.n_events; i++) {
+			binEvent(i_run.reset[i], i_run.duration[i],
+				i_run.stamp[i], i_run.speed[i],
+				i_run.offset[i]);
+		}
+		i_run.n_events = 0;
 	}
 
-	/** Bin vehicle event data into 30 second samples */
-	public void bin30SecondSamples(SampleBin bin) {
-		SampleData sam = new SampleData();
-		for (VehicleEvent e: events) {
-			Integer stamp = e.getStamp();
-			if (e.isReset() || stamp == null)
-				sam.setReset();
-			else {
-				int p = getPeriod30Second(stamp);
-				int sp = sam.getPeriod();
-				if (sam.isReset())
-					sam.clear(p + 1);
-				else if (p >= sp) {
-					while (p > sp) {
-						bin.addSample(sam);
-						sp++;
-						sam.clear(sp);
-					}
-					sam.addEvent(e);
+	/** Bin one vehicle event into samples */
+	private void binEvent(boolean r, int d, int s, int v, long off) {
+		if (index != null)
+			index.addEvent(s, off);
+		if (r || s == MISSING)
+			sam.setReset();
+		else {
+			int p = getPeriod(s);
+			int sp = sam.getPeriod();
+			if (sam.isReset())
+				sam.clear(p + 1);
+			else if (p >= sp) {
+				while (p > sp) {
+					addSample();
+					sp++;
+					sam.clear(sp);
 				}
+				sam.addEvent(d, v);
 			}
 		}
-		bin.addSample(sam);
+	}
+
+	/** Finish processing at the end of the log.  Any remaining events
+	 * without timestamps can not be resolved.
+	 * @param len Total length of the log. */
+	private void finish(long len) {
+		flushBackward();
+		flushInterpolate();
+		addSample();
+		if (index != null)
+			index.finish(len);
+	}
+
+	/** Add the current sample data to all bins */
+	private void addSample() {
+		for (SampleBin bin: bins)
+			bin.addSample(sam);
 	}
 }
@@ -0,0 +1,268 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reader for vehicle events in a .vlog file.  The log is scanned as raw
+ * ASCII bytes, one event per line, without creating any objects per event.
+ * Each line has the fields "duration,headway,hh:mm:ss,speed"; a line with
+ * only "*" is a reset event.  Missing or invalid fields are MISSING.
+ *
+ * @author Douglas Lau
+ */
+public class VehicleEventReader {
+
+	/** Value for missing (or invalid) fields */
+	static public final int MISSING = Integer.MIN_VALUE;
+
+	/** Size of input buffer */
+	static private final int BUF_SIZE = 8192;
+
+	/** Check if a byte is whitespace (or a control character) */
+	static private boolean isSpace(byte b) {
+		return (b & 0xFF) <= ' ';
+	}
+
+	/** Parse a decimal integer, with an optional sign.
+	 * @param b Buffer containing the value.
+	 * @param s Start offset (inclusive).
+	 * @param e End offset (exclusive).
+	 * @return Parsed value, or MISSING if invalid. */
+	static private int parseInt(byte[] b, int s, int e) {
+		if (s >= e)
+			return MISSING;
+		boolean neg = false;
+		int limit = -Integer.MAX_VALUE;
+		if (b[s] == '-') {
+			neg = true;
+			limit = Integer.MIN_VALUE;
+			s++;
+		} else if (b[s] == '+')
+			s++;
+		if (s >= e)
+			return MISSING;
+		int mul_min = limit / 10;
+		int v = 0;
+		for (int i = s; i < e; i++) {
+			int d = b[i] - '0';
+			if (d < 0 || d > 9 || v < mul_min)
+				return MISSING;
+			v *= 10;
+			if (v < limit + d)
+				return MISSING;
+			v -= d;
+		}
+		return neg ? v : -v;
+	}
+
+	/** Parse a time stamp (hh:mm:ss).
+	 * @param b Buffer containing the stamp.
+	 * @param s Start offset (inclusive).
+	 * @param e End offset (exclusive).
+	 * @return Time stamp (ms of day), or MISSING if invalid. */
+	static private int parseStamp(byte[] b, int s, int e) {
+		int c0 = indexOf(b, s, e, ':');
+		int c1 = indexOf(b, c0 + 1, e, ':');
+		if (c0 >= e || c1 >= e)
+			return MISSING;
+		int c2 = indexOf(b, c1 + 1, e, ':');
+		// Trailing empty components are ignored
+		for (int i = c2; i < e; i++) {
+			if (b[i] != ':')
+				return MISSING;
+		}
+		int hour = parseInt(b, s, c0);
+		int minute = parseInt(b, c0 + 1, c1);
+		int second = parseInt(b, c1 + 1, c2);
+		if (hour == MISSING || hour < 0 || hour > 23)
+			return MISSING;
+		if (minute == MISSING || minute < 0 || minute > 59)
+			return MISSING;
+		if (second == MISSING || second < 0 || second > 59)
+			return MISSING;
+		int ms = hour * 3600 + minute * 60 + second;
+		return ms * 1000;
+	}
+
+	/** Find the offset of a character in a buffer.
+	 * @return Offset of character, or end offset if not found. */
+	static private int indexOf(byte[] b, int s, int e, char c) {
+		for (int i = s; i < e; i++) {
+			if (b[i] == c)
+				return i;
+		}
+		return e;
+	}
+
+	/** Input stream to read */
+	private final InputStream in;
+
+	/** Input buffer */
+	private final byte[] buf = new byte[BUF_SIZE];
+
+	/** Position of next byte in input buffer */
+	private int pos = 0;
+
+	/** Number of bytes in input buffer */
+	private int lim = 0;
+
+	/** Stream offset of input buffer */
+	private long base = 0;
+
+	/** Stream offset of current line */
+	private long offset = -1;
+
+	/** Flag to skip a line feed following a carriage return */
+	private boolean skip_lf = false;
+
+	/** Current line */
+	private byte[] line = new byte[128];
+
+	/** Length of current line */
+	private int n_line = 0;
+
+	/** Is the current event a reset? */
+	private boolean reset;
+
+	/** Duration vehicle was over detector (ms) */
+	private int duration;
+
+	/** Headway from start of previous vehicle to this one (ms) */
+	private int headway;
+
+	/** Time stamp of this event (ms of day 0 - 86.4 million) */
+	private int stamp;
+
+	/** Vehicle speed (mph) */
+	private int speed;
+
+	/** Create a new vehicle event reader.
+	 * @param is Input stream to read .vlog events. */
+	public VehicleEventReader(InputStream is) {
+		in = is;
+	}
+
+	/** Read the next vehicle event.
+	 * @return true if an event was read, false at end of log. */
+	public boolean next() throws IOException {
+		if (!readLine())
+			return false;
+		parseLine();
+		return true;
+	}
+
+	/** Read the next line into the line buffer.  A line is terminated
+	 * by a line feed, a carriage return, or both.
+	 * @return true if a line was read, false at end of stream. */
+	private boolean readLine() throws IOException {
+		n_line = 0;
+		offset = -1;
+		while (true) {
+			if (pos >= lim) {
+				base += lim;
+				lim = in.read(buf, 0, buf.length);
+				pos = 0;
+				if (lim <= 0) {
+					lim = 0;
+					return n_line > 0;
+				}
+			}
+			byte b = buf[pos++];
+			if (skip_lf) {
+				skip_lf = false;
+				if (b == '\n')
+					continue;
+			}
+			if (offset < 0)
+				offset = base + pos - 1;
+			if (b == '\n')
+				return true;
+			if (b == '\r') {
+				skip_lf = true;
+				return true;
+			}
+			if (n_line == line.length)
+				line = Arrays.copyOf(line, n_line * 2);
+			line[n_line++] = b;
+		}
+	}
+
+	/** Parse the fields of the current line */
+	private void parseLine() {
+		int s = 0;
+		int e = n_line;
+		while (s < e && isSpace(line[s]))
+			s++;
+		while (e > s && isSpace(line[e - 1]))
+			e--;
+		int f0 = indexOf(line, s, e, ',');
+		int f1 = indexOf(line, f0 + 1, e, ',');
+		int f2 = indexOf(line, f1 + 1, e, ',');
+		int f3 = indexOf(line, f2 + 1, e, ',');
+		reset = (f0 - s == 1) && line[s] == '*' && isEmpty(f0, e);
+		duration = parseInt(line, s, f0);
+		headway = parseInt(line, f0 + 1, f1);
+		stamp = parseStamp(line, f1 + 1, f2);
+		speed = parseInt(line, f2 + 1, f3);
+	}
+
+	/** Check if all remaining fields of the current line are empty */
+	private boolean isEmpty(int s, int e) {
+		for (int i = s; i < e; i++) {
+			if (line[i] != ',')
+				return false;
+		}
+		return true;
+	}
+
+	/** Get the stream offset of the current event's line */
+	public long getOffset() {
+		return offset;
+	}
+
+	/** Get the number of bytes read from the stream */
+	public long getPosition() {
+		return base + pos;
+	}
+
+	/** Is the current event a reset? */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/** Get the duration of the current event (ms) */
+	public int getDuration() {
+		return duration;
+	}
+
+	/** Get the headway of the current event (ms) */
+	public int getHeadway() {
+		return headway;
+	}
+
+	/** Get the time stamp of the current event (ms of day) */
+	public int getStamp() {
+		return stamp;
+	}
+
+	/** Get the vehicle speed of the current event (mph) */
+	public int getSpeed() {
+		return speed;
+	}
+}
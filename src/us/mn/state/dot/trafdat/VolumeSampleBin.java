@@ -1,6 +1,6 @@
 /*
  * Project: Trafdat
- * Copyright (C) 2007-2010  Minnesota Department of Transportation
+ * Copyright (C) 2007-2014  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -19,29 +19,17 @@ package us.mn.state.dot.trafdat;
  *
  * @author Douglas Lau
  */
-public class VolumeSampleBin implements SampleBin {
+public class VolumeSampleBin extends AbstractSampleBin {
 
-	/** Binned 30-second volume data */
-	protected final byte[] vol = new byte[SAMPLES_PER_DAY];
-
-	/** Create a new volume sample bin */
-	public VolumeSampleBin() {
-		for(int i = 0; i < SAMPLES_PER_DAY; i++)
-			vol[i] = SampleData.MISSING_DATA;
-	}
-
-	/** Add one data sample to the bin */
-	public void addSample(SampleData sam) {
-		byte v = (byte)sam.getVolume();
-		if(v >= 0) {
-			int p = sam.getPeriod();
-			if(p >= 0 && p < SAMPLES_PER_DAY)
-				vol[p] = v;
-		}
+	/** Create a new volume sample bin.
+	 * @param n_samples Number of samples per day.
+	 * @param w Width of each sample (1 or 2 bytes). */
+	public VolumeSampleBin(int n_samples, int w) {
+		super(n_samples, w);
 	}
 
-	/** Get the binned data */
-	public byte[] getData() {
-		return vol;
+	/** Get the value to bin from a data sample */
+	protected int getValue(SampleData sam) {
+		return sam.getVolume();
 	}
 }
@@ -0,0 +1,462 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Memory-mapped zip file.  The central directory is indexed by an array of
+ * entry offsets, sorted by name, so an entry is found with a binary search
+ * directly on the mapped bytes.  Stored entries are read as slices of the
+ * mapped file, and deflated entries through a pooled Inflater.  Unlike
+ * java.util.zip.ZipFile, no objects are created for each entry, and the
+ * stored (compressed) bytes of an entry can be read directly.  Zip64
+ * archives are not supported; entries which would need zip64 fields are
+ * left out, and the file must be smaller than 2 GB.
+ *
+ * Since the file is mapped, it must be replaced atomically (by renaming a
+ * new file into place), never truncated or rewritten in place.  Reading a
+ * mapped page past the end of a truncated file raises SIGBUS, which the
+ * JVM reports as an InternalError.
+ *
+ * @author Douglas Lau
+ */
+public class ZipDirectory {
+
+	/** End of central directory signature */
+	static private final int EOCD_SIG = 0x06054b50;
+
+	/** Central directory file header signature */
+	static private final int CEN_SIG = 0x02014b50;
+
+	/** Local file header signature */
+	static private final int LOC_SIG = 0x04034b50;
+
+	/** Size of end of central directory record (without comment) */
+	static private final int EOCD_LEN = 22;
+
+	/** Size of central directory file header (without name, etc.) */
+	static private final int CEN_LEN = 46;
+
+	/** Size of local file header (without name, etc.) */
+	static private final int LOC_LEN = 30;
+
+	/** Maximum length of zip file comment */
+	static private final int MAX_COMMENT = 0xFFFF;
+
+	/** Value of 32-bit field which has been moved to zip64 extra */
+	static private final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	/** General purpose flag for encrypted entries */
+	static private final int FLAG_ENCRYPTED = 0x01;
+
+	/** Charset of entry names */
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Maximum size of inflater input buffers */
+	static private final int INPUT_BUF_SIZE = 8192;
+
+	/** Maximum number of pooled inflaters */
+	static private final int MAX_INFLATERS = 16;
+
+	/** Pool of inflaters (for raw deflate data) */
+	static private final ArrayDeque<Inflater> INFLATERS =
+		new ArrayDeque<Inflater>();
+
+	/** Get an inflater from the pool */
+	static private Inflater borrowInflater() {
+		synchronized (INFLATERS) {
+			Inflater inf = INFLATERS.poll();
+			if (inf != null)
+				return inf;
+		}
+		return new Inflater(true);
+	}
+
+	/** Return an inflater to the pool */
+	static private void returnInflater(Inflater inf) {
+		inf.reset();
+		synchronized (INFLATERS) {
+			if (INFLATERS.size() < MAX_INFLATERS) {
+				INFLATERS.push(inf);
+				return;
+			}
+		}
+		inf.end();
+	}
+
+	/** Input stream reading from a byte buffer */
+	static private class BufferInputStream extends InputStream {
+
+		/** Buffer to read */
+		private final ByteBuffer buf;
+
+		/** Create a new buffer input stream */
+		private BufferInputStream(ByteBuffer b) {
+			buf = b;
+		}
+
+		/** Read one byte */
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+		}
+
+		/** Read into a byte array */
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buf.hasRemaining())
+				return -1;
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		/** Skip bytes */
+		@Override
+		public long skip(long n) {
+			int s = (int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + s);
+			return s;
+		}
+
+		/** Get the number of bytes available */
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+	}
+
+	/** Input stream for a deflated entry, using a pooled inflater */
+	static private class EntryInflaterStream extends InflaterInputStream {
+
+		/** Uncompressed size of entry */
+		private final long size;
+
+		/** Flag indicating end of compressed data was reached */
+		private boolean eof = false;
+
+		/** Flag indicating stream was closed */
+		private boolean closed = false;
+
+		/** Create a new entry inflater stream.
+		 * @param in Stream of deflated data.
+		 * @param c_size Compressed size of entry.
+		 * @param sz Uncompressed size of entry. */
+		private EntryInflaterStream(InputStream in, long c_size,
+			long sz)
+		{
+			super(in, borrowInflater(), (int)Math.max(1,
+				Math.min(c_size + 1, INPUT_BUF_SIZE)));
+			size = sz;
+		}
+
+		/** Fill the input buffer.  A dummy byte is added after the
+		 * end of data, which the inflater needs when the deflated data
+		 * has no header (nowrap). */
+		@Override
+		protected void fill() throws IOException {
+			if (eof)
+				throw new EOFException("Unexpected end of entry");
+			len = in.read(buf, 0, buf.length);
+			if (len < 0) {
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		/** Get the number of bytes available */
+		@Override
+		public int available() {
+			if (closed)
+				return 0;
+			long a = size - inf.getBytesWritten();
+			a = Math.min(a, Integer.MAX_VALUE);
+			return (int)Math.max(0, a);
+		}
+
+		/** Close the stream and return the inflater to the pool */
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				super.close();
+				returnInflater(inf);
+			}
+		}
+	}
+
+	/** Mapped zip file (little-endian) */
+	private final ByteBuffer buf;
+
+	/** Offsets of central directory headers, sorted by entry name */
+	private final int[] entries;
+
+	/** Map a zip file and index its central directory.
+	 * @param f Zip file.
+	 * @throws IOException On file I/O error or invalid zip file. */
+	public ZipDirectory(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long len = raf.length();
+			if (len > Integer.MAX_VALUE)
+				throw new ZipException("Zip file too large");
+			FileChannel fc = raf.getChannel();
+			buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, len)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		finally {
+			raf.close();
+		}
+		entries = readCentralDirectory();
+	}
+
+	/** Get an unsigned 16-bit value from the mapped file */
+	private int get16(int off) {
+		return buf.getShort(off) & 0xFFFF;
+	}
+
+	/** Get an unsigned 32-bit value from the mapped file */
+	private long get32(int off) {
+		return buf.getInt(off) & 0xFFFFFFFFL;
+	}
+
+	/** Read and index the central directory.
+	 * @return Offsets of central directory headers, sorted by name. */
+	private int[] readCentralDirectory() throws IOException {
+		int e = findEndRecord();
+		long cen_len = get32(e + 12);
+		long cen_off = get32(e + 16);
+		if (cen_len == ZIP64_MAGIC || cen_off == ZIP64_MAGIC ||
+		    cen_off + cen_len > e)
+			throw new ZipException("Invalid central directory");
+		int end = (int)(cen_off + cen_len);
+		int[] ents = new int[get16(e + 10)];
+		int n = 0;
+		int i = (int)cen_off;
+		while (i + CEN_LEN <= end && buf.getInt(i) == CEN_SIG) {
+			int n_len = get16(i + 28);
+			int x_len = get16(i + 30);
+			int c_len = get16(i + 32);
+			if (i + CEN_LEN + n_len > end)
+				break;
+			if (isSupported(i)) {
+				if (n == ents.length)
+					ents = Arrays.copyOf(ents, n * 2 + 1);
+				ents[n++] = i;
+			}
+			i += CEN_LEN + n_len + x_len + c_len;
+		}
+		return sortByName(Arrays.copyOf(ents, n));
+	}
+
+	/** Find the end of central directory record.
+	 * @return Offset of end record. */
+	private int findEndRecord() throws ZipException {
+		int last = buf.limit() - EOCD_LEN;
+		int first = Math.max(0, last - MAX_COMMENT);
+		for (int i = last; i >= first; i--) {
+			if (buf.getInt(i) == EOCD_SIG)
+				return i;
+		}
+		throw new ZipException("Missing end of central directory");
+	}
+
+	/** Check if an entry is supported (not encrypted or zip64) */
+	private boolean isSupported(int cen) {
+		return (get16(cen + 8) & FLAG_ENCRYPTED) == 0 &&
+		       get32(cen + 20) != ZIP64_MAGIC &&
+		       get32(cen + 24) != ZIP64_MAGIC &&
+		       get32(cen + 42) != ZIP64_MAGIC;
+	}
+
+	/** Sort central directory header offsets by entry name */
+	private int[] sortByName(int[] ents) {
+		Integer[] sorted = new Integer[ents.length];
+		for (int i = 0; i < ents.length; i++)
+			sorted[i] = ents[i];
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareNames(a, b);
+			}
+		});
+		for (int i = 0; i < ents.length; i++)
+			ents[i] = sorted[i];
+		return ents;
+	}
+
+	/** Compare the names of two central directory headers */
+	private int compareNames(int a, int b) {
+		int a_len = get16(a + 28);
+		int b_len = get16(b + 28);
+		for (int j = 0; j < a_len && j < b_len; j++) {
+			int c = (buf.get(a + CEN_LEN + j) & 0xFF) -
+			        (buf.get(b + CEN_LEN + j) & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return a_len - b_len;
+	}
+
+	/** Compare the name of a central directory header with an entry
+	 * name, without encoding the name unless it is not ASCII. */
+	private int compareName(int cen, String name) {
+		int n_len = get16(cen + 28);
+		int len = name.length();
+		for (int j = 0; j < n_len && j < len; j++) {
+			char ch = name.charAt(j);
+			if (ch >= 0x80)
+				return compareName(cen, name.getBytes(UTF8));
+			int c = (buf.get(cen + CEN_LEN + j) & 0xFF) - ch;
+			if (c != 0)
+				return c;
+		}
+		return n_len - len;
+	}
+
+	/** Compare the name of a central directory header with an encoded
+	 * entry name. */
+	private int compareName(int cen, byte[] name) {
+		int n_len = get16(cen + 28);
+		for (int j = 0; j < n_len && j < name.length; j++) {
+			int c = (buf.get(cen + CEN_LEN + j) & 0xFF) -
+			        (name[j] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return n_len - name.length;
+	}
+
+	/** Get the number of entries */
+	public int size() {
+		return entries.length;
+	}
+
+	/** Find an entry with a binary search of the sorted names.
+	 * @param name Entry name.
+	 * @return Entry index, or -1 if not found. */
+	public int find(String name) {
+		int lo = 0;
+		int hi = entries.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareName(entries[mid], name);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** Get the name of an entry.
+	 * @param i Entry index. */
+	public String getName(int i) {
+		int cen = entries[i];
+		byte[] b = new byte[get16(cen + 28)];
+		for (int j = 0; j < b.length; j++)
+			b[j] = buf.get(cen + CEN_LEN + j);
+		return new String(b, UTF8);
+	}
+
+	/** Get the compression method of an entry.
+	 * @param i Entry index.
+	 * @return ZipEntry.STORED or ZipEntry.DEFLATED (or other). */
+	public int getMethod(int i) {
+		return get16(entries[i] + 10);
+	}
+
+	/** Get the CRC-32 of an entry's uncompressed data.
+	 * @param i Entry index. */
+	public long getCrc(int i) {
+		return get32(entries[i] + 16);
+	}
+
+	/** Get the compressed size of an entry.
+	 * @param i Entry index. */
+	public long getCompressedSize(int i) {
+		return get32(entries[i] + 20);
+	}
+
+	/** Get the uncompressed size of an entry.
+	 * @param i Entry index. */
+	public long getSize(int i) {
+		return get32(entries[i] + 24);
+	}
+
+	/** Get the local header offset of an entry.
+	 * @param i Entry index. */
+	public long getOffset(int i) {
+		return get32(entries[i] + 42);
+	}
+
+	/** Get the stored (compressed) data of an entry.
+	 * @param i Entry index.
+	 * @return Read-only slice of the mapped file. */
+	public ByteBuffer getStored(int i) throws ZipException {
+		long loc = getOffset(i);
+		if (loc + LOC_LEN > buf.limit() ||
+		    buf.getInt((int)loc) != LOC_SIG)
+			throw new ZipException("Invalid local header");
+		int n_len = get16((int)loc + 26);
+		int x_len = get16((int)loc + 28);
+		long off = loc + LOC_LEN + n_len + x_len;
+		long end = off + getCompressedSize(i);
+		if (end > buf.limit())
+			throw new ZipException("Invalid entry size");
+		ByteBuffer b = buf.asReadOnlyBuffer();
+		b.limit((int)end);
+		b.position((int)off);
+		return b.slice();
+	}
+
+	/** Get an input stream of the uncompressed data of an entry.
+	 * @param i Entry index.
+	 * @return Input stream; it must be closed to return its inflater
+	 *         to the pool. */
+	public InputStream getInputStream(int i) throws ZipException {
+		ByteBuffer stored = getStored(i);
+		switch (getMethod(i)) {
+		case ZipEntry.STORED:
+			return new BufferInputStream(stored);
+		case ZipEntry.DEFLATED:
+			return new EntryInflaterStream(new BufferInputStream(
+				stored), getCompressedSize(i), getSize(i));
+		default:
+			throw new ZipException("Unsupported method");
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Project: Trafdat
+ * Copyright (C) 2014  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.trafdat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of mapped .traffic zip files.  Mapping a zip file indexes
+ * the entire central directory, which is expensive for archives with
+ * thousands of entries.  No file descriptor is held open, and nothing needs
+ * to be released after use; an evicted mapping is unmapped by the garbage
+ * collector once no streams or buffers still refer to it.  Eviction is by
+ * least-recently-used order, or after a mapping has been idle too long.
+ *
+ * @author Douglas Lau
+ */
+public class ZipFileCache {
+
+	/** Cached mapping of a zip file */
+	static private final class Entry {
+
+		/** Traffic file */
+		private final File file;
+
+		/** Last modified time of file when mapped */
+		private final long mtime;
+
+		/** Mapped zip file */
+		private final ZipDirectory directory;
+
+		/** Time of last use (protected by cache lock) */
+		private long used;
+
+		/** Create a new cache entry */
+		private Entry(File f, long mt, ZipDirectory d) {
+			file = f;
+			mtime = mt;
+			directory = d;
+			used = System.currentTimeMillis();
+		}
+	}
+
+	/** Maximum number of mapped zip files */
+	private final int max_open;
+
+	/** Maximum idle time (ms) before a mapping is evicted */
+	private final long max_idle;
+
+	/** Mapping of cached entries, in access order */
+	private final LinkedHashMap<File, Entry> entries =
+		new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+	/** Create a new zip file cache.
+	 * @param mo Maximum number of mapped zip files.
+	 * @param mi Maximum idle time (ms) before a zip file is evicted. */
+	public ZipFileCache(int mo, long mi) {
+		max_open = mo;
+		max_idle = mi;
+	}
+
+	/** Lookup a mapped zip file, mapping it if it is not cached or has
+	 * been modified since it was mapped.
+	 * @param file Traffic file to map.
+	 * @return Mapped zip file.
+	 * @throws FileNotFoundException If file does not exist.
+	 * @throws IOException On file I/O error. */
+	public ZipDirectory lookup(File file) throws IOException {
+		if (!file.isFile())
+			throw new FileNotFoundException(file.getPath());
+		long mtime = file.lastModified();
+		Entry e = cached(file, mtime);
+		Metrics.ZIP_FILES.record(e != null);
+		if (e != null)
+			return e.directory;
+		// Map zip file outside of lock; it could take a while
+		Entry ne = new Entry(file, mtime, new ZipDirectory(file));
+		Metrics.ZIP_OPENS.increment();
+		return insert(ne).directory;
+	}
+
+	/** Lookup a cached entry and mark it used.
+	 * @param file Traffic file.
+	 * @param mtime Current last modified time of file.
+	 * @return Cached entry, or null if not cached. */
+	private synchronized Entry cached(File file, long mtime) {
+		expire();
+		Entry e = entries.get(file);
+		if (e != null) {
+			if (e.mtime == mtime)
+				return touch(e);
+			// File was replaced since it was mapped
+			entries.remove(file);
+		}
+		return null;
+	}
+
+	/** Insert a newly mapped entry and mark it used.
+	 * @param ne Newly mapped entry.
+	 * @return Entry to use (may be another entry mapped concurrently) */
+	private synchronized Entry insert(Entry ne) {
+		Entry e = entries.get(ne.file);
+		if (e != null && e.mtime == ne.mtime)
+			return touch(e);
+		entries.put(ne.file, ne);
+		expire();
+		return touch(ne);
+	}
+
+	/** Mark an entry used (cache lock must be held) */
+	private Entry touch(Entry e) {
+		e.used = System.currentTimeMillis();
+		return e;
+	}
+
+	/** Evict entries which are idle or over the size limit (cache lock
+	 * must be held) */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		int n_open = entries.size();
+		ArrayList<File> rm = new ArrayList<File>();
+		// Iteration is in least-recently-used order
+		for (Entry e: entries.values()) {
+			if (n_open - rm.size() > max_open ||
+			    now - e.used > max_idle)
+				rm.add(e.file);
+		}
+		for (File f: rm)
+			entries.remove(f);
+	}
+
+	/** Evict all entries */
+	public synchronized void clear() {
+		entries.clear();
+	}
+}